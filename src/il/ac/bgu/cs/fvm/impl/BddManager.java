@@ -0,0 +1,399 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small reduced ordered BDD package. BDDs are int handles into this
+ * manager's node table, {@link #FALSE} and {@link #TRUE} being the
+ * terminals; variable 0 is the topmost. Nodes are hash-consed, so two
+ * handles denote the same function exactly when they are equal.
+ * <p>
+ * Nodes are never freed; a manager is meant to live as long as one
+ * analysis. Not thread safe.
+ */
+public class BddManager {
+
+    public static final int FALSE = 0;
+    public static final int TRUE = 1;
+
+    private static final int TERMINAL_VAR = Integer.MAX_VALUE;
+
+    private static final int OP_ITE = 0;
+    private static final int OP_EXISTS = 1;
+    private static final int OP_REL_PROD = 2;
+    private static final int OP_REPLACE = 3;
+
+    private int[] vars = new int[1 << 10];
+    private int[] lows = new int[1 << 10];
+    private int[] highs = new int[1 << 10];
+    private int nodeCount;
+
+    // Open-addressing unique table of node ids, -1 for empty slots.
+    private int[] unique = new int[1 << 11];
+
+    // Direct-mapped cache of operation results: op, three operands, result.
+    private final int[] cache;
+    private final int cacheMask;
+
+    private int replaceMaps;
+
+    public BddManager() {
+        this(1 << 18);
+    }
+
+    /**
+     * @param cacheSize Number of operation cache slots, rounded up to a power
+     * of two.
+     */
+    public BddManager(int cacheSize) {
+        int size = Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1;
+        cache = new int[size * 5];
+        Arrays.fill(cache, -1);
+        cacheMask = size - 1;
+        Arrays.fill(unique, -1);
+        vars[FALSE] = TERMINAL_VAR;
+        vars[TRUE] = TERMINAL_VAR;
+        nodeCount = 2;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public int var(int v) {
+        return mk(v, FALSE, TRUE);
+    }
+
+    public int nvar(int v) {
+        return mk(v, TRUE, FALSE);
+    }
+
+    public int topVar(int f) {
+        return vars[f];
+    }
+
+    public int low(int f) {
+        return lows[f];
+    }
+
+    public int high(int f) {
+        return highs[f];
+    }
+
+    /**
+     * The node testing variable {@code v}, with {@code low} and
+     * {@code high} as its 0- and 1-branches. Both must be below {@code v}.
+     */
+    public int mk(int v, int low, int high) {
+        if (low == high) {
+            return low;
+        }
+        int slot = hash(v, low, high) & (unique.length - 1);
+        for (int id = unique[slot]; id != -1; id = unique[slot]) {
+            if (vars[id] == v && lows[id] == low && highs[id] == high) {
+                return id;
+            }
+            slot = (slot + 1) & (unique.length - 1);
+        }
+        if (nodeCount == vars.length) {
+            vars = Arrays.copyOf(vars, nodeCount * 2);
+            lows = Arrays.copyOf(lows, nodeCount * 2);
+            highs = Arrays.copyOf(highs, nodeCount * 2);
+        }
+        int id = nodeCount++;
+        vars[id] = v;
+        lows[id] = low;
+        highs[id] = high;
+        unique[slot] = id;
+        if (nodeCount * 2 > unique.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        unique = new int[unique.length * 2];
+        Arrays.fill(unique, -1);
+        for (int id = 2; id < nodeCount; id++) {
+            int slot = hash(vars[id], lows[id], highs[id]) & (unique.length - 1);
+            while (unique[slot] != -1) {
+                slot = (slot + 1) & (unique.length - 1);
+            }
+            unique[slot] = id;
+        }
+    }
+
+    private static int hash(int a, int b, int c) {
+        int h = a * 0x9E3779B1 + b;
+        h = h * 0x85EBCA77 + c;
+        return h ^ (h >>> 15);
+    }
+
+    public int not(int f) {
+        return ite(f, FALSE, TRUE);
+    }
+
+    public int and(int f, int g) {
+        return ite(f, g, FALSE);
+    }
+
+    public int or(int f, int g) {
+        return ite(f, TRUE, g);
+    }
+
+    public int xor(int f, int g) {
+        return ite(f, not(g), g);
+    }
+
+    public int iff(int f, int g) {
+        return ite(f, g, not(g));
+    }
+
+    public int implies(int f, int g) {
+        return ite(f, g, TRUE);
+    }
+
+    public int ite(int f, int g, int h) {
+        if (f == TRUE) {
+            return g;
+        }
+        if (f == FALSE) {
+            return h;
+        }
+        if (g == h) {
+            return g;
+        }
+        if (g == TRUE && h == FALSE) {
+            return f;
+        }
+        int cached = lookup(OP_ITE, f, g, h);
+        if (cached >= 0) {
+            return cached;
+        }
+        int v = Math.min(vars[f], Math.min(vars[g], vars[h]));
+        int low = ite(cofactor(f, v, false), cofactor(g, v, false), cofactor(h, v, false));
+        int high = ite(cofactor(f, v, true), cofactor(g, v, true), cofactor(h, v, true));
+        return store(OP_ITE, f, g, h, mk(v, low, high));
+    }
+
+    private int cofactor(int f, int v, boolean value) {
+        if (vars[f] != v) {
+            return f;
+        }
+        return value ? highs[f] : lows[f];
+    }
+
+    /**
+     * The conjunction of the given variables, for use as the {@code cube}
+     * of {@link #exists} and {@link #relProd}.
+     */
+    public int cube(int... variables) {
+        int[] sorted = variables.clone();
+        Arrays.sort(sorted);
+        int result = TRUE;
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            result = mk(sorted[i], FALSE, result);
+        }
+        return result;
+    }
+
+    // Drops the cube variables above v, which cannot occur below v.
+    private int skipAbove(int cube, int v) {
+        while (cube != TRUE && vars[cube] < v) {
+            cube = highs[cube];
+        }
+        return cube;
+    }
+
+    public int exists(int f, int cube) {
+        if (f == TRUE || f == FALSE || cube == TRUE) {
+            return f;
+        }
+        cube = skipAbove(cube, vars[f]);
+        if (cube == TRUE) {
+            return f;
+        }
+        int cached = lookup(OP_EXISTS, f, cube, 0);
+        if (cached >= 0) {
+            return cached;
+        }
+        int low = exists(lows[f], cube);
+        int high = exists(highs[f], cube);
+        int result = vars[cube] == vars[f] ? or(low, high) : mk(vars[f], low, high);
+        return store(OP_EXISTS, f, cube, 0, result);
+    }
+
+    /**
+     * The conjunction of {@code f} and {@code g} with the variables of
+     * {@code cube} quantified away, without building the conjunction first.
+     */
+    public int relProd(int f, int g, int cube) {
+        if (f == FALSE || g == FALSE) {
+            return FALSE;
+        }
+        if (f == TRUE && g == TRUE) {
+            return TRUE;
+        }
+        if (f == TRUE) {
+            return exists(g, cube);
+        }
+        if (g == TRUE) {
+            return exists(f, cube);
+        }
+        int v = Math.min(vars[f], vars[g]);
+        cube = skipAbove(cube, v);
+        if (cube == TRUE) {
+            return and(f, g);
+        }
+        int cached = lookup(OP_REL_PROD, f, g, cube);
+        if (cached >= 0) {
+            return cached;
+        }
+        int low = relProd(cofactor(f, v, false), cofactor(g, v, false), cube);
+        int result;
+        if (vars[cube] == v) {
+            result = low == TRUE ? TRUE : or(low, relProd(cofactor(f, v, true), cofactor(g, v, true), cube));
+        } else {
+            result = mk(v, low, relProd(cofactor(f, v, true), cofactor(g, v, true), cube));
+        }
+        return store(OP_REL_PROD, f, g, cube, result);
+    }
+
+    /**
+     * A renaming of variables, for {@link #replace}. It must keep the order
+     * of the variables it moves, relative to each other and to the ones it
+     * leaves alone in the BDDs it is applied to.
+     */
+    public final class Renaming {
+        private final int id = replaceMaps++;
+        private final int[] targets;
+
+        private Renaming(int[] targets) {
+            this.targets = targets;
+        }
+    }
+
+    /**
+     * @param from Variables to rename.
+     * @param to Their new names, position by position.
+     */
+    public Renaming renaming(int[] from, int[] to) {
+        int size = 0;
+        for (int v : from) {
+            size = Math.max(size, v + 1);
+        }
+        int[] targets = new int[size];
+        for (int v = 0; v < size; v++) {
+            targets[v] = v;
+        }
+        for (int i = 0; i < from.length; i++) {
+            targets[from[i]] = to[i];
+        }
+        return new Renaming(targets);
+    }
+
+    public int replace(int f, Renaming renaming) {
+        if (f == TRUE || f == FALSE) {
+            return f;
+        }
+        int cached = lookup(OP_REPLACE, f, renaming.id, 0);
+        if (cached >= 0) {
+            return cached;
+        }
+        int v = vars[f];
+        int target = v < renaming.targets.length ? renaming.targets[v] : v;
+        int result = mk(target, replace(lows[f], renaming), replace(highs[f], renaming));
+        return store(OP_REPLACE, f, renaming.id, 0, result);
+    }
+
+    /**
+     * The number of assignments to {@code variables} that satisfy
+     * {@code f}, whose support must lie within them.
+     */
+    public BigInteger satCount(int f, int[] variables) {
+        int[] sorted = variables.clone();
+        Arrays.sort(sorted);
+        Map<Integer, Integer> positions = new HashMap<>();
+        for (int i = 0; i < sorted.length; i++) {
+            positions.put(sorted[i], i);
+        }
+        Map<Integer, BigInteger> memo = new HashMap<>();
+        return satCount(f, memo, positions, sorted.length).shiftLeft(position(f, positions, sorted.length));
+    }
+
+    // Satisfying assignments of the variables from f's own down.
+    private BigInteger satCount(int f, Map<Integer, BigInteger> memo, Map<Integer, Integer> positions, int count) {
+        if (f == FALSE) {
+            return BigInteger.ZERO;
+        }
+        if (f == TRUE) {
+            return BigInteger.ONE;
+        }
+        BigInteger known = memo.get(f);
+        if (known != null) {
+            return known;
+        }
+        int position = position(f, positions, count);
+        BigInteger low = satCount(lows[f], memo, positions, count)
+                .shiftLeft(position(lows[f], positions, count) - position - 1);
+        BigInteger high = satCount(highs[f], memo, positions, count)
+                .shiftLeft(position(highs[f], positions, count) - position - 1);
+        BigInteger result = low.add(high);
+        memo.put(f, result);
+        return result;
+    }
+
+    private int position(int f, Map<Integer, Integer> positions, int count) {
+        if (f == TRUE || f == FALSE) {
+            return count;
+        }
+        Integer position = positions.get(vars[f]);
+        if (position == null) {
+            throw new IllegalArgumentException("Variable " + vars[f] + " is outside the counted set");
+        }
+        return position;
+    }
+
+    /**
+     * @return One satisfying assignment of {@code f}, as variable to value,
+     * or {@code null} if {@code f} is {@link #FALSE}. Variables it does not
+     * mention are left out.
+     */
+    public Map<Integer, Boolean> anySat(int f) {
+        if (f == FALSE) {
+            return null;
+        }
+        Map<Integer, Boolean> assignment = new HashMap<>();
+        while (f != TRUE) {
+            if (lows[f] != FALSE) {
+                assignment.put(vars[f], false);
+                f = lows[f];
+            } else {
+                assignment.put(vars[f], true);
+                f = highs[f];
+            }
+        }
+        return assignment;
+    }
+
+    private int lookup(int op, int a, int b, int c) {
+        int slot = (hash(op * 31 + a, b, c) & cacheMask) * 5;
+        if (cache[slot] == op && cache[slot + 1] == a && cache[slot + 2] == b && cache[slot + 3] == c) {
+            return cache[slot + 4];
+        }
+        return -1;
+    }
+
+    private int store(int op, int a, int b, int c, int result) {
+        int slot = (hash(op * 31 + a, b, c) & cacheMask) * 5;
+        cache[slot] = op;
+        cache[slot + 1] = a;
+        cache[slot + 2] = b;
+        cache[slot + 3] = c;
+        cache[slot + 4] = result;
+        return result;
+    }
+}
@@ -0,0 +1,186 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Holzmann's bitstate hashing: a {@link StateStore} of a fixed number of
+ * bits, in which a state is only the {@code k} bits its fingerprint selects.
+ * A new state whose bits all happen to be set already is taken for a
+ * visited one and is not explored, so a search may miss states, but never
+ * goes past the memory it was given.
+ * <p>
+ * {@link #omissionProbability()}, {@link #hashFactor()} and
+ * {@link #estimatedCoverage()} tell how much a search using the store may
+ * have missed.
+ */
+public class BitstateStateStore<S> implements StateStore<S> {
+
+    private final long[] words;
+    private final long bits;
+    private final int hashes;
+    private final ToLongFunction<? super S> fingerprints;
+    private long setBits;
+    private long size;
+    private double expectedOmissions;
+
+    /**
+     * A store of {@code bytes} bytes and {@code hashes} bits per state, over
+     * {@link #fingerprint(Object)}.
+     */
+    public BitstateStateStore(long bytes, int hashes) {
+        this(bytes, hashes, BitstateStateStore::fingerprint);
+    }
+
+    public BitstateStateStore(long bytes, int hashes, ToLongFunction<? super S> fingerprints) {
+        if (bytes < 8 || bytes / 8 > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Bitstate memory must be between 8 bytes and 16GB, got " + bytes);
+        }
+        if (hashes < 1) {
+            throw new IllegalArgumentException("Hash count must be positive, got " + hashes);
+        }
+        this.words = new long[(int) (bytes / 8)];
+        this.bits = words.length * 64L;
+        this.hashes = hashes;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * A 64-bit hash of a state that agrees with its {@code equals}: pairs,
+     * lists and maps are hashed by their structure and other values by
+     * their {@code hashCode}. Valuation maps, whose {@code hashCode}s mostly
+     * cancel out, thus still get distinct fingerprints.
+     */
+    public static long fingerprint(Object state) {
+        if (state instanceof Pair) {
+            return mix(mix(fingerprint(((Pair<?, ?>) state).first) + 0x3C6EF372FE94F82AL)
+                    ^ fingerprint(((Pair<?, ?>) state).second));
+        }
+        if (state instanceof List) {
+            long h = 0x6A09E667F3BCC909L;
+            for (Object element : (List<?>) state) {
+                h = mix(h ^ fingerprint(element));
+            }
+            return h;
+        }
+        if (state instanceof Map) {
+            // A sum, as equal maps may list their entries in different orders.
+            long h = 0xBB67AE8584CAA73BL;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) state).entrySet()) {
+                h += mix(mix(fingerprint(entry.getKey())) ^ fingerprint(entry.getValue()));
+            }
+            return mix(h);
+        }
+        return state == null ? 0 : mix(state.hashCode());
+    }
+
+    // The finalizer of MurmurHash3.
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public boolean add(S state) {
+        long fingerprint = fingerprints.applyAsLong(state);
+        long step = mix(fingerprint) | 1;
+        double omission = omissionProbability();
+        boolean added = false;
+        for (int i = 0; i < hashes; i++) {
+            long bit = bit(fingerprint, step, i);
+            long mask = 1L << bit;
+            int word = (int) (bit >>> 6);
+            if ((words[word] & mask) == 0) {
+                words[word] |= mask;
+                setBits++;
+                added = true;
+            }
+        }
+        if (added) {
+            size++;
+            // For each state stored, about omission / (1 - omission) were lost before it.
+            expectedOmissions += omission < 1 ? omission / (1 - omission) : 0;
+        }
+        return added;
+    }
+
+    @Override
+    public boolean contains(S state) {
+        long fingerprint = fingerprints.applyAsLong(state);
+        long step = mix(fingerprint) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = bit(fingerprint, step, i);
+            if ((words[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+
+    // The i-th bit of a fingerprint, by double hashing.
+    private long bit(long fingerprint, long step, int i) {
+        return Long.remainderUnsigned(fingerprint + i * step, bits);
+    }
+
+    /**
+     * @return The number of states stored, which is at most the number of
+     * distinct states added.
+     */
+    @Override
+    public long size() {
+        return size;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * @return The fraction of the bits that are set.
+     */
+    public double fillRatio() {
+        return (double) setBits / bits;
+    }
+
+    /**
+     * @return The probability that a new state would now be taken for a
+     * visited one.
+     */
+    public double omissionProbability() {
+        return Math.pow(fillRatio(), hashes);
+    }
+
+    /**
+     * @return SPIN's hash factor, the bits per state stored. Much above 100,
+     * few states are likely missed; near 1, most are.
+     */
+    public double hashFactor() {
+        return size == 0 ? Double.POSITIVE_INFINITY : (double) bits / size;
+    }
+
+    /**
+     * @return An estimate of the fraction of the distinct states added that
+     * were stored: the states stored, over those plus the expected number
+     * lost to full bits. States reachable only through lost ones are not
+     * counted, so where those are many the estimate is high.
+     */
+    public double estimatedCoverage() {
+        return size == 0 ? 1 : size / (size + expectedOmissions);
+    }
+}
@@ -0,0 +1,194 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.transitionsystem.AlternatingSequence;
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded model checking of a circuit: the register updates are unrolled
+ * step by step into CNF and handed to a {@link SatSolver}, which is asked
+ * after each step whether a signal can be true there. Only the registers in
+ * the signal's cone of influence are unrolled, and the solver keeps what it
+ * learnt from one step to the next.
+ * <p>
+ * The circuit is given by its {@link CircuitFunctions}, and each BDD node
+ * becomes one Tseitin variable per step, so the encoding grows with the
+ * BDDs and the bound, not with the number of inputs and registers.
+ */
+class BoundedModelChecker {
+
+    private final CircuitFunctions functions;
+    private final BddManager bdd;
+    private final SatSolver solver = new SatSolver();
+    private final int trueLit;
+    // Per step: literal of each input and register, -1 until needed; literal of each encoded BDD node.
+    private final List<int[]> inputLits = new ArrayList<>();
+    private final List<int[]> registerLits = new ArrayList<>();
+    private final List<Map<Integer, Integer>> nodeLits = new ArrayList<>();
+    private int[] cone = new int[0];
+
+    BoundedModelChecker(CircuitFunctions functions) {
+        this.functions = functions;
+        this.bdd = functions.bdd;
+        this.trueLit = SatSolver.positive(solver.newVar());
+        solver.addClause(trueLit);
+    }
+
+    /**
+     * @return A shortest path of {@link FvmFacadeImpl#transitionSystemFromCircuit}
+     * from an initial state to a state where {@code signal} is true, if one
+     * takes at most {@code bound} steps; otherwise {@code null}.
+     */
+    AlternatingSequence<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> check(String signal, int bound) {
+        int bad = functions.signal(signal);
+        cone = coneOfInfluence(bad);
+        for (int step = 0; step <= bound; step++) {
+            unrollTo(step);
+            if (solver.solve(encode(bad, step))) {
+                return trace(step);
+            }
+        }
+        return null;
+    }
+
+    // The registers f depends on, directly or through earlier updates.
+    private int[] coneOfInfluence(int f) {
+        BitSet registers = new BitSet();
+        List<Integer> pending = new ArrayList<>();
+        pending.add(f);
+        while (!pending.isEmpty()) {
+            for (int bit : support(pending.remove(pending.size() - 1)).stream().toArray()) {
+                int register = functions.positionOf(bit);
+                if (functions.isRegisterBit(bit) && !registers.get(register)) {
+                    registers.set(register);
+                    pending.add(functions.update(register));
+                }
+            }
+        }
+        return registers.stream().toArray();
+    }
+
+    private BitSet support(int f) {
+        BitSet bits = new BitSet();
+        BitSet visited = new BitSet();
+        List<Integer> pending = new ArrayList<>();
+        pending.add(f);
+        while (!pending.isEmpty()) {
+            int node = pending.remove(pending.size() - 1);
+            if (node == BddManager.TRUE || node == BddManager.FALSE || visited.get(node)) {
+                continue;
+            }
+            visited.set(node);
+            bits.set(functions.bitOf(bdd.topVar(node)));
+            pending.add(bdd.low(node));
+            pending.add(bdd.high(node));
+        }
+        return bits;
+    }
+
+    // Encodes the cone's registers up to step, including those added to the cone since.
+    private void unrollTo(int step) {
+        for (int t = 0; t <= step; t++) {
+            if (t == registerLits.size()) {
+                int[] inputs = new int[functions.inputs.size()];
+                Arrays.fill(inputs, -1);
+                int[] registers = new int[functions.registers.size()];
+                Arrays.fill(registers, -1);
+                inputLits.add(inputs);
+                registerLits.add(registers);
+                nodeLits.add(new HashMap<>());
+            }
+            for (int register : cone) {
+                if (registerLits.get(t)[register] == -1) {
+                    registerLits.get(t)[register] = t == 0
+                            ? SatSolver.negate(trueLit)
+                            : encode(functions.update(register), t - 1);
+                }
+            }
+        }
+    }
+
+    // The literal of BDD f over the inputs and registers of step.
+    private int encode(int f, int step) {
+        if (f == BddManager.TRUE) {
+            return trueLit;
+        }
+        if (f == BddManager.FALSE) {
+            return SatSolver.negate(trueLit);
+        }
+        Integer known = nodeLits.get(step).get(f);
+        if (known != null) {
+            return known;
+        }
+        int selector = bitLit(functions.bitOf(bdd.topVar(f)), step);
+        int low = encode(bdd.low(f), step);
+        int high = encode(bdd.high(f), step);
+        int result;
+        if (low == SatSolver.negate(trueLit) && high == trueLit) {
+            result = selector;
+        } else if (low == trueLit && high == SatSolver.negate(trueLit)) {
+            result = SatSolver.negate(selector);
+        } else {
+            result = SatSolver.positive(solver.newVar());
+            int notSelector = SatSolver.negate(selector);
+            int notResult = SatSolver.negate(result);
+            solver.addClause(notSelector, SatSolver.negate(high), result);
+            solver.addClause(notSelector, high, notResult);
+            solver.addClause(selector, SatSolver.negate(low), result);
+            solver.addClause(selector, low, notResult);
+            solver.addClause(SatSolver.negate(low), SatSolver.negate(high), result);
+            solver.addClause(low, high, notResult);
+        }
+        nodeLits.get(step).put(f, result);
+        return result;
+    }
+
+    private int bitLit(int bit, int step) {
+        int position = functions.positionOf(bit);
+        if (functions.isRegisterBit(bit)) {
+            return registerLits.get(step)[position];
+        }
+        int[] inputs = inputLits.get(step);
+        if (inputs[position] == -1) {
+            inputs[position] = SatSolver.positive(solver.newVar());
+        }
+        return inputs[position];
+    }
+
+    // Replays the inputs of the solver's model through the register updates.
+    private AlternatingSequence<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> trace(int steps) {
+        List<Map<String, Boolean>> inputs = new ArrayList<>();
+        List<Long> inputBits = new ArrayList<>();
+        for (int t = 0; t <= steps; t++) {
+            long x = 0;
+            int[] lits = inputLits.get(t);
+            for (int j = 0; j < lits.length; j++) {
+                if (lits[j] != -1 && solver.modelValue(lits[j] >> 1)) {
+                    x |= 1L << j;
+                }
+            }
+            inputs.add(new CircuitEngine.BitVectorMap(functions.inputs, x));
+            inputBits.add(x);
+        }
+        List<Pair<Map<String, Boolean>, Map<String, Boolean>>> states = new ArrayList<>();
+        long registers = 0;
+        for (int t = 0; t <= steps; t++) {
+            states.add(new Pair<>(inputs.get(t), new CircuitEngine.BitVectorMap(functions.registers, registers)));
+            long x = inputBits.get(t);
+            long next = 0;
+            for (int i = 0; i < functions.registers.size(); i++) {
+                if (functions.evaluate(functions.update(i), x, registers)) {
+                    next |= 1L << i;
+                }
+            }
+            registers = next;
+        }
+        return new AlternatingSequence<>(states, inputs.subList(1, inputs.size()));
+    }
+}
@@ -0,0 +1,22 @@
+package il.ac.bgu.cs.fvm.impl;
+
+/**
+ * A state graph with Buchi acceptance, explored through its successor
+ * relation. This is what the emptiness checks behind
+ * {@link FvmFacadeImpl#verifyAnOmegaRegularProperty} search for accepting
+ * cycles. It is the one-set case of {@link GeneralizedBuchiGraph}.
+ */
+public interface BuchiGraph<N> extends GeneralizedBuchiGraph<N> {
+
+    boolean isAccepting(N state);
+
+    @Override
+    default int acceptanceSetCount() {
+        return 1;
+    }
+
+    @Override
+    default long acceptanceMask(N state) {
+        return isAccepting(state) ? 1L : 0L;
+    }
+}
@@ -0,0 +1,250 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.channelsystem.ChannelSystem;
+import il.ac.bgu.cs.fvm.channelsystem.InterleavingActDef;
+import il.ac.bgu.cs.fvm.channelsystem.ParserBasedInterleavingActDef;
+import il.ac.bgu.cs.fvm.programgraph.PGTransition;
+import il.ac.bgu.cs.fvm.programgraph.ProgramGraph;
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Generates the states of a channel system on demand, without building the
+ * product program graph. A global location is a {@link Composition.GlobalState}
+ * over the processes' location ids; a state pairs it with an interned
+ * {@link Valuation}.
+ * <p>
+ * The moves are the ones of the pairwise construction behind
+ * {@link FvmFacadeImpl#transitionSystemFromChannelSystem}: a process takes
+ * any of its actions that is not a handshake half alone, and a handshake half
+ * of the first process joins a matching half of the second under the first
+ * one's condition. With a single process, handshake halves are ordinary moves.
+ */
+class ChannelSystemEngine<L, A> {
+
+    private static final class Move<A> {
+        private final String condition;
+        private final A action;
+        // The process that moves and its target location id; for a handshake, also the second process's.
+        private final int component;
+        private final int target;
+        private final int secondTarget;
+
+        Move(String condition, A action, int component, int target, int secondTarget) {
+            this.condition = condition;
+            this.action = action;
+            this.component = component;
+            this.target = target;
+            this.secondTarget = secondTarget;
+        }
+    }
+
+    private final List<Interner<L>> locations = new ArrayList<>();
+    // Per process, per location id: the moves of that process alone.
+    private final List<List<List<Move<A>>>> singleMoves = new ArrayList<>();
+    // Handshake halves of the first two processes, per location id, by channel key.
+    private final List<Map<String, List<PGTransition<L, A>>>> halves1 = new ArrayList<>();
+    private final List<Map<String, List<PGTransition<L, A>>>> halves2 = new ArrayList<>();
+    private final InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
+    private final Map<Long, List<Move<A>>> handshakes = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> matching = new ConcurrentHashMap<>();
+    private final List<Pair<List<L>, Map<String, Object>>> initialStates = new ArrayList<>();
+    private final CompiledDefinitions.Evaluator evaluator;
+    private final Valuation.Pool valuations = new Valuation.Pool();
+    private final Set<A> actions = new HashSet<>();
+
+    /**
+     * @param initialEvals The valuations of the combined initialization lists.
+     * @param evaluator Evaluates the processes' conditions and actions.
+     */
+    ChannelSystemEngine(ChannelSystem<L, A> cs, List<Map<String, Object>> initialEvals, CompiledDefinitions.Evaluator evaluator) {
+        this.evaluator = evaluator;
+        List<ProgramGraph<L, A>> pgs = cs.getProgramGraphs();
+        Map<A, Boolean> oneSided = new HashMap<>();
+        for (int i = 0; i < pgs.size(); i++) {
+            ProgramGraph<L, A> pg = pgs.get(i);
+            Interner<L> ids = new Interner<>();
+            for (L location : pg.getLocations()) {
+                ids.intern(location);
+            }
+            List<List<Move<A>>> moves = new ArrayList<>();
+            List<Map<String, List<PGTransition<L, A>>>> halves = new ArrayList<>();
+            for (int l = 0; l < ids.capacity(); l++) {
+                moves.add(new ArrayList<>());
+                halves.add(new HashMap<>());
+            }
+            for (PGTransition<L, A> transition : pg.getTransitions()) {
+                int from = ids.idOf(transition.getFrom());
+                A action = transition.getAction();
+                boolean half = pgs.size() > 1 && oneSided.computeIfAbsent(action,
+                        a -> interleavingActDef.isOneSidedAction(a.toString()));
+                if (!half) {
+                    actions.add(action);
+                    moves.get(from).add(new Move<>(transition.getCondition(), action, i, ids.idOf(transition.getTo()), -1));
+                } else if (i < 2) {
+                    halves.get(from).computeIfAbsent(channelKey(action), k -> new ArrayList<>()).add(transition);
+                }
+            }
+            locations.add(ids);
+            singleMoves.add(moves);
+            if (i == 0) {
+                halves1.addAll(halves);
+            } else if (i == 1) {
+                halves2.addAll(halves);
+            }
+        }
+        addHandshakeActions();
+        int[][] initialLocations = new int[pgs.size()][];
+        for (int i = 0; i < pgs.size(); i++) {
+            Interner<L> ids = locations.get(i);
+            initialLocations[i] = pgs.get(i).getInitialLocations().stream().mapToInt(ids::idOf).toArray();
+        }
+        List<List<L>> initialGlobalLocations = new ArrayList<>();
+        addTuples(initialLocations, new int[pgs.size()], 0, initialGlobalLocations);
+        for (Map<String, Object> eval : initialEvals) {
+            for (List<L> location : initialGlobalLocations) {
+                initialStates.add(new Pair<>(location, valuations.intern(eval)));
+            }
+        }
+    }
+
+    // Every handshake the first two processes' halves can make, wherever they are.
+    private void addHandshakeActions() {
+        Map<String, Set<A>> actions2 = new HashMap<>();
+        for (Map<String, List<PGTransition<L, A>>> byChannel : halves2) {
+            for (Map.Entry<String, List<PGTransition<L, A>>> channel : byChannel.entrySet()) {
+                for (PGTransition<L, A> transition : channel.getValue()) {
+                    actions2.computeIfAbsent(channel.getKey(), k -> new HashSet<>()).add(transition.getAction());
+                }
+            }
+        }
+        for (Map<String, List<PGTransition<L, A>>> byChannel : halves1) {
+            for (Map.Entry<String, List<PGTransition<L, A>>> channel : byChannel.entrySet()) {
+                for (PGTransition<L, A> transition1 : channel.getValue()) {
+                    for (A action2 : actions2.getOrDefault(channel.getKey(), Collections.emptySet())) {
+                        String joined = transition1.getAction() + "|" + action2;
+                        if (matching.computeIfAbsent(joined, interleavingActDef::isMatchingAction)) {
+                            actions.add(handshakeAction(joined));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // A handshake is labeled by its halves' actions joined with "|", as the pairwise construction labels it.
+    @SuppressWarnings("unchecked")
+    private static <A> A handshakeAction(String joined) {
+        return (A) joined;
+    }
+
+    // The first two processes' halves at l1 and l2, joined when first asked for.
+    private List<Move<A>> handshakesAt(int l1, int l2) {
+        return handshakes.computeIfAbsent(pairKey(l1, l2), key -> {
+            List<Move<A>> moves = new ArrayList<>();
+            for (Map.Entry<String, List<PGTransition<L, A>>> channel : halves1.get(l1).entrySet()) {
+                for (PGTransition<L, A> transition2 : halves2.get(l2).getOrDefault(channel.getKey(), Collections.emptyList())) {
+                    for (PGTransition<L, A> transition1 : channel.getValue()) {
+                        String actions = transition1.getAction() + "|" + transition2.getAction();
+                        if (matching.computeIfAbsent(actions, interleavingActDef::isMatchingAction)) {
+                            moves.add(new Move<>(transition1.getCondition(), handshakeAction(actions), 0,
+                                    locations.get(0).idOf(transition1.getTo()),
+                                    locations.get(1).idOf(transition2.getTo())));
+                        }
+                    }
+                }
+            }
+            return moves;
+        });
+    }
+
+    /**
+     * @return The actions of every move the processes can make from any
+     * global location, reachable or not: each process's actions that are not
+     * handshake halves, and every handshake of the first two processes.
+     */
+    Set<A> actions() {
+        return Collections.unmodifiableSet(actions);
+    }
+
+    Set<Pair<List<L>, Map<String, Object>>> initialStates() {
+        return new HashSet<>(initialStates);
+    }
+
+    /**
+     * Passes each move out of {@code state} that its condition and effect
+     * allow, as the move's action and the state it leads to.
+     */
+    void forEachSuccessor(Pair<List<L>, Map<String, Object>> state, BiConsumer<A, Pair<List<L>, Map<String, Object>>> sink) {
+        Composition.GlobalState<L> location = (Composition.GlobalState<L>) state.first;
+        for (int i = 0; i < locations.size(); i++) {
+            for (Move<A> move : singleMoves.get(i).get(location.id(i))) {
+                fire(state, location, move, sink);
+            }
+        }
+        if (locations.size() > 1) {
+            for (Move<A> move : handshakesAt(location.id(0), location.id(1))) {
+                fire(state, location, move, sink);
+            }
+        }
+    }
+
+    Set<Pair<List<L>, Map<String, Object>>> successors(Pair<List<L>, Map<String, Object>> state) {
+        Set<Pair<List<L>, Map<String, Object>>> successors = new HashSet<>();
+        forEachSuccessor(state, (action, next) -> successors.add(next));
+        return successors;
+    }
+
+    private void fire(
+            Pair<List<L>, Map<String, Object>> state,
+            Composition.GlobalState<L> location,
+            Move<A> move,
+            BiConsumer<A, Pair<List<L>, Map<String, Object>>> sink) {
+        if (!evaluator.evaluate(state.second, move.condition)) {
+            return;
+        }
+        Map<String, Object> eval = evaluator.effect(state.second, move.action);
+        if (eval == null) {
+            return;
+        }
+        int[] ids = new int[locations.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = location.id(i);
+        }
+        ids[move.component] = move.target;
+        if (move.secondTarget >= 0) {
+            ids[1] = move.secondTarget;
+        }
+        sink.accept(move.action, new Pair<>(new Composition.GlobalState<>(ids, locations), valuations.intern(eval)));
+    }
+
+    private void addTuples(int[][] choices, int[] tuple, int position, List<List<L>> sink) {
+        if (position == choices.length) {
+            sink.add(new Composition.GlobalState<>(tuple.clone(), locations));
+            return;
+        }
+        for (int choice : choices[position]) {
+            tuple[position] = choice;
+            addTuples(choices, tuple, position + 1, sink);
+        }
+    }
+
+    private static long pairKey(int l1, int l2) {
+        return (long) l1 << 32 | l2;
+    }
+
+    // A handshake half without its last character, e.g. "_C?" for "_C?x".
+    private static String channelKey(Object action) {
+        String text = action.toString();
+        return text.substring(0, text.length() - 1);
+    }
+}
@@ -0,0 +1,267 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.circuits.Circuit;
+import il.ac.bgu.cs.fvm.transitionsystem.Transition;
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The state space of a circuit, with input and register valuations packed
+ * into {@code long} bit vectors: bit i is the i-th name in the circuit's
+ * iteration order. The circuit itself only accepts maps, so it is handed
+ * read-only map views of the vectors, one per distinct vector; its answers
+ * go through a {@link CircuitEvaluationCache}.
+ * <p>
+ * Every state has a successor for each input vector, so the reachable states
+ * are all input vectors paired with the reachable register vectors; the
+ * search runs over register vectors only, starting from all-false.
+ * <p>
+ * The states are pairs of those views, whose Map hashes, sums over the
+ * entries, take few distinct values; the transition system they go into is
+ * keyed on their bits instead, with {@link #stateHash}.
+ */
+class CircuitEngine {
+
+    private final Circuit circuit;
+    private final CircuitEvaluationCache cache;
+    private final Names inputs;
+    private final Names registers;
+    private final List<Map<String, Boolean>> inputViews = new ArrayList<>();
+    private final Map<Long, Map<String, Boolean>> registerViews = new HashMap<>();
+
+    /**
+     * @param cache The evaluation cache of {@code circuit}, which also fixes
+     * the bit positions of its names.
+     */
+    CircuitEngine(Circuit circuit, CircuitEvaluationCache cache) {
+        this.circuit = circuit;
+        this.cache = cache;
+        this.inputs = cache.inputs;
+        this.registers = cache.registers;
+        if (inputs.size() > 30 || registers.size() > 64 || cache.outputs.size() > 64) {
+            throw new IllegalArgumentException("Circuit too large: " + inputs.size() + " inputs, "
+                    + registers.size() + " registers, " + cache.outputs.size() + " outputs");
+        }
+        for (long x = 0; x < 1L << inputs.size(); x++) {
+            inputViews.add(new BitVectorMap(inputs, x));
+        }
+    }
+
+    /**
+     * Adds the reachable states of the circuit to {@code newTS}, with the
+     * same states, actions, labels and transitions as
+     * {@link FvmFacadeImpl#transitionSystemFromCircuit}.
+     */
+    void buildInto(TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
+        newTS.addAllActions(inputViews);
+        for (Set<String> names : Arrays.asList(
+                circuit.getRegisterNames(), circuit.getInputPortNames(), circuit.getOutputPortNames())) {
+            for (String name : names) {
+                newTS.addAtomicProposition(name);
+            }
+        }
+
+        Set<Long> reached = new HashSet<>();
+        Deque<Long> frontier = new ArrayDeque<>();
+        reached.add(0L);
+        frontier.add(0L);
+        addStates(newTS, 0L);
+        for (Map<String, Boolean> input : inputViews) {
+            newTS.setInitial(new Pair<>(input, registerView(0L)), true);
+        }
+        while (!frontier.isEmpty()) {
+            long r = frontier.poll();
+            for (int x = 0; x < inputViews.size(); x++) {
+                Pair<Map<String, Boolean>, Map<String, Boolean>> state = new Pair<>(inputViews.get(x), registerView(r));
+                long next = nextRegisters(x, r);
+                if (reached.add(next)) {
+                    frontier.add(next);
+                    addStates(newTS, next);
+                }
+                for (Map<String, Boolean> input : inputViews) {
+                    newTS.addTransition(new Transition<>(state, input, new Pair<>(input, registerView(next))));
+                }
+            }
+        }
+    }
+
+    // Adds the states with registers r, one per input vector, with their labels.
+    private void addStates(TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS, long r) {
+        for (int x = 0; x < inputViews.size(); x++) {
+            Map<String, Boolean> input = inputViews.get(x);
+            Pair<Map<String, Boolean>, Map<String, Boolean>> state = new Pair<>(input, registerView(r));
+            newTS.addState(state);
+            Map<String, Boolean> values = new HashMap<>(input);
+            values.putAll(state.second);
+            values.putAll(new BitVectorMap(cache.outputs, outputs(x, r)));
+            for (Map.Entry<String, Boolean> value : values.entrySet()) {
+                if (value.getValue()) {
+                    newTS.addToLabel(state, value.getKey());
+                }
+            }
+        }
+    }
+
+    private long nextRegisters(int x, long r) {
+        return cache.nextRegisters(x, r,
+                () -> registers.encode(circuit.updateRegisters(inputViews.get(x), registerView(r))));
+    }
+
+    private long outputs(int x, long r) {
+        return cache.outputs(x, r,
+                () -> cache.outputs.encode(circuit.computeOutputs(inputViews.get(x), registerView(r))));
+    }
+
+    /**
+     * A hash of the states of {@link #buildInto} from their input and
+     * register bits, which agrees with equals on any object.
+     */
+    int stateHash(Object state) {
+        if (state instanceof Pair) {
+            Object input = ((Pair<?, ?>) state).first;
+            Object register = ((Pair<?, ?>) state).second;
+            if (input instanceof Map && register instanceof Map) {
+                long h = (registers.encode((Map<?, ?>) register) * 0x9E3779B97F4A7C15L
+                        + inputs.encode((Map<?, ?>) input)) * 0xC2B2AE3D27D4EB4FL;
+                return (int) (h ^ h >>> 32);
+            }
+        }
+        return state.hashCode();
+    }
+
+    private Map<String, Boolean> registerView(long r) {
+        return registerViews.computeIfAbsent(r, bits -> new BitVectorMap(registers, bits));
+    }
+
+    // An ordered set of names, giving each one a bit position.
+    static final class Names {
+        private final String[] names;
+        private final Map<String, Integer> positions = new HashMap<>();
+
+        Names(Set<String> names) {
+            this.names = names.toArray(new String[0]);
+            for (int i = 0; i < this.names.length; i++) {
+                positions.put(this.names[i], i);
+            }
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String name(int position) {
+            return names[position];
+        }
+
+        long encode(Map<?, ?> values) {
+            if (values instanceof BitVectorMap && ((BitVectorMap) values).names == this) {
+                return ((BitVectorMap) values).bits;
+            }
+            long bits = 0;
+            for (int i = 0; i < names.length; i++) {
+                if (Boolean.TRUE.equals(values.get(names[i]))) {
+                    bits |= 1L << i;
+                }
+            }
+            return bits;
+        }
+    }
+
+    /**
+     * A read-only map from each name to its bit, equal to any map with the
+     * same entries.
+     */
+    static final class BitVectorMap extends AbstractMap<String, Boolean> {
+        private final Names names;
+        private final long bits;
+        private final int hash;
+
+        BitVectorMap(Names names, long bits) {
+            this.names = names;
+            this.bits = bits;
+            int h = 0;
+            for (int i = 0; i < names.size(); i++) {
+                h += names.names[i].hashCode() ^ Boolean.hashCode(bit(i));
+            }
+            this.hash = h;
+        }
+
+        private boolean bit(int i) {
+            return (bits >>> i & 1) != 0;
+        }
+
+        @Override
+        public Boolean get(Object key) {
+            Integer i = names.positions.get(key);
+            return i == null ? null : bit(i);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return names.positions.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return names.size();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof BitVectorMap && ((BitVectorMap) o).names == names) {
+                return ((BitVectorMap) o).bits == bits;
+            }
+            return super.equals(o);
+        }
+
+        @Override
+        public Set<Entry<String, Boolean>> entrySet() {
+            return new AbstractSet<Entry<String, Boolean>>() {
+                @Override
+                public Iterator<Entry<String, Boolean>> iterator() {
+                    return new Iterator<Entry<String, Boolean>>() {
+                        private int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < names.size();
+                        }
+
+                        @Override
+                        public Entry<String, Boolean> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            int i = next++;
+                            return new SimpleImmutableEntry<>(names.names[i], bit(i));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return names.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.circuits.Circuit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, least-recently-used cache of one circuit's register updates and
+ * outputs, keyed by packed input and register bits. It also fixes the bit
+ * position of every name, so that keys mean the same thing from one
+ * exploration of the circuit to the next.
+ */
+public class CircuitEvaluationCache {
+
+    private static final int NEXT_REGISTERS = 0;
+    private static final int OUTPUTS = 1;
+
+    private static final class Key {
+        private final long inputs;
+        private final long registers;
+
+        Key(int kind, long inputs, long registers) {
+            // Inputs take at most 30 bits, so the kind fits above them.
+            this.inputs = inputs | (long) kind << 32;
+            this.registers = registers;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).inputs == inputs && ((Key) o).registers == registers;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(inputs * 31 + registers);
+        }
+    }
+
+    final CircuitEngine.Names inputs;
+    final CircuitEngine.Names registers;
+    final CircuitEngine.Names outputs;
+    private final int capacity;
+    private final Map<Key, Long> entries;
+    private long hits;
+    private long misses;
+
+    CircuitEvaluationCache(Circuit c, int capacity) {
+        this.inputs = new CircuitEngine.Names(c.getInputPortNames());
+        this.registers = new CircuitEngine.Names(c.getRegisterNames());
+        this.outputs = new CircuitEngine.Names(c.getOutputPortNames());
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+                return size() > CircuitEvaluationCache.this.capacity;
+            }
+        };
+    }
+
+    long nextRegisters(long inputs, long registers, LongSupplier compute) {
+        return get(new Key(NEXT_REGISTERS, inputs, registers), compute);
+    }
+
+    long outputs(long inputs, long registers, LongSupplier compute) {
+        return get(new Key(OUTPUTS, inputs, registers), compute);
+    }
+
+    private synchronized long get(Key key, LongSupplier compute) {
+        Long value = entries.get(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        misses++;
+        long computed = compute.getAsLong();
+        if (capacity > 0) {
+            entries.put(key, computed);
+        }
+        return computed;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
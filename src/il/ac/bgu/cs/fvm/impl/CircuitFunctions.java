@@ -0,0 +1,273 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.circuits.Circuit;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A circuit's register updates and outputs as BDDs over its inputs and
+ * registers, for the symbolic analyses: {@link BoundedModelChecker} and
+ * {@link SymbolicReachability#of(CircuitFunctions)}. Registers start out
+ * false, as in {@link FvmFacadeImpl#transitionSystemFromCircuit}.
+ * <p>
+ * A circuit whose structure is known is described directly: the functions
+ * are built with the operations of {@link #getBddManager()} over
+ * {@link #input(String)} and {@link #register(String)}, and set with
+ * {@link #setUpdate} and {@link #setOutput}; until then they are false.
+ * This costs what the BDDs cost, so it works for any circuit the analyses
+ * can handle.
+ * <p>
+ * A {@link Circuit} is only known through its update and output functions,
+ * so {@link #of(Circuit, BddManager)} evaluates them once for every input
+ * and register valuation. That is 2^(inputs + registers) evaluations,
+ * whatever the circuit's structure, so circuits of more than
+ * {@link #MAX_SAMPLED_BITS} inputs and registers together are rejected up
+ * front.
+ * <p>
+ * The state bits are the registers from the last one up, then the inputs the
+ * same way, so that valuation {@code t = r << k | x} lists them from the most
+ * significant down. State bit i is BDD variable 2i; the odd variables are
+ * left for the next copy of {@link SymbolicReachability}.
+ */
+public class CircuitFunctions {
+
+    // About 16M evaluations of each function; a few seconds for small circuits.
+    static final int MAX_SAMPLED_BITS = 24;
+
+    final BddManager bdd;
+    final CircuitEngine.Names inputs;
+    final CircuitEngine.Names registers;
+    final CircuitEngine.Names outputs;
+    private final int[] updates;
+    private final int[] outputValues;
+
+    /**
+     * @throws IllegalArgumentException If there are more than 64 inputs or
+     * more than 64 registers.
+     */
+    public CircuitFunctions(BddManager bdd, Set<String> inputNames, Set<String> registerNames,
+                            Set<String> outputNames) {
+        this.bdd = bdd;
+        this.inputs = new CircuitEngine.Names(inputNames);
+        this.registers = new CircuitEngine.Names(registerNames);
+        this.outputs = new CircuitEngine.Names(outputNames);
+        if (inputs.size() > 64 || registers.size() > 64) {
+            throw new IllegalArgumentException("Circuit too large: " + inputs.size() + " inputs and "
+                    + registers.size() + " registers, at most 64 of each");
+        }
+        this.updates = new int[registers.size()];
+        this.outputValues = new int[outputs.size()];
+    }
+
+    /**
+     * Samples {@code c}'s functions into BDDs of {@code bdd}. The BDDs are
+     * assembled bottom-up as the values come in, and the valuations are not
+     * kept.
+     *
+     * @throws IllegalArgumentException If {@code c} has more than
+     * {@link #MAX_SAMPLED_BITS} inputs and registers, or more than 64 outputs.
+     */
+    public static CircuitFunctions of(Circuit c, BddManager bdd) {
+        CircuitFunctions functions = new CircuitFunctions(bdd, c.getInputPortNames(), c.getRegisterNames(),
+                c.getOutputPortNames());
+        CircuitEngine.Names inputs = functions.inputs;
+        CircuitEngine.Names registers = functions.registers;
+        CircuitEngine.Names outputs = functions.outputs;
+        int k = inputs.size();
+        int bits = functions.bits();
+        if (bits > MAX_SAMPLED_BITS) {
+            throw new IllegalArgumentException("Circuit too large: " + k + " inputs and " + registers.size()
+                    + " registers would take 2^" + bits + " evaluations of its functions, at most 2^"
+                    + MAX_SAMPLED_BITS + " are allowed");
+        }
+        if (outputs.size() > 64) {
+            throw new IllegalArgumentException("Circuit too large: " + outputs.size() + " outputs, at most 64");
+        }
+        TruthTable updateTable = functions.new TruthTable(functions.updates);
+        TruthTable outputTable = functions.new TruthTable(functions.outputValues);
+        for (long t = 0; t < 1L << bits; t++) {
+            Map<String, Boolean> input = new CircuitEngine.BitVectorMap(inputs, t & ((1L << k) - 1));
+            Map<String, Boolean> register = new CircuitEngine.BitVectorMap(registers, t >>> k);
+            updateTable.add(t, registers.encode(c.updateRegisters(input, register)));
+            outputTable.add(t, outputs.encode(c.computeOutputs(input, register)));
+        }
+        return functions;
+    }
+
+    public BddManager getBddManager() {
+        return bdd;
+    }
+
+    /**
+     * @return The BDD of the input called {@code name}.
+     */
+    public int input(String name) {
+        return bdd.var(variableOf(inputBit(position(inputs, name, "input"))));
+    }
+
+    /**
+     * @return The BDD of the current value of the register called
+     * {@code name}.
+     */
+    public int register(String name) {
+        return bdd.var(variableOf(registerBit(position(registers, name, "register"))));
+    }
+
+    /**
+     * Sets the next value of register {@code name} to {@code f}, a BDD over
+     * the inputs and registers.
+     */
+    public void setUpdate(String name, int f) {
+        updates[position(registers, name, "register")] = checkSupport(f);
+    }
+
+    /**
+     * Sets output {@code name} to {@code f}, a BDD over the inputs and
+     * registers.
+     */
+    public void setOutput(String name, int f) {
+        outputValues[position(outputs, name, "output")] = checkSupport(f);
+    }
+
+    private static int position(CircuitEngine.Names names, String name, String kind) {
+        for (int i = 0; i < names.size(); i++) {
+            if (names.name(i).equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No " + kind + " named " + name);
+    }
+
+    // f, if it only depends on the inputs and registers.
+    private int checkSupport(int f) {
+        BitSet visited = new BitSet();
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(f);
+        while (!pending.isEmpty()) {
+            int node = pending.pop();
+            if (node == BddManager.TRUE || node == BddManager.FALSE || visited.get(node)) {
+                continue;
+            }
+            visited.set(node);
+            if (bitOf(bdd.topVar(node)) < 0) {
+                throw new IllegalArgumentException("Function depends on variable " + bdd.topVar(node)
+                        + ", which is not an input or register");
+            }
+            pending.push(bdd.low(node));
+            pending.push(bdd.high(node));
+        }
+        return f;
+    }
+
+    int bits() {
+        return inputs.size() + registers.size();
+    }
+
+    static int variableOf(int bit) {
+        return 2 * bit;
+    }
+
+    // -1 for variables that are not state bits.
+    int bitOf(int variable) {
+        return variable % 2 == 0 && variable / 2 < bits() ? variable / 2 : -1;
+    }
+
+    int registerBit(int register) {
+        return registers.size() - 1 - register;
+    }
+
+    int inputBit(int input) {
+        return bits() - 1 - input;
+    }
+
+    boolean isRegisterBit(int bit) {
+        return bit < registers.size();
+    }
+
+    // The register or input position of a state bit.
+    int positionOf(int bit) {
+        return isRegisterBit(bit) ? registers.size() - 1 - bit : bits() - 1 - bit;
+    }
+
+    int update(int register) {
+        return updates[register];
+    }
+
+    int output(int output) {
+        return outputValues[output];
+    }
+
+    /**
+     * @return The value of {@code f} at the given inputs and registers, bit j
+     * of each being the one at position j.
+     */
+    boolean evaluate(int f, long inputBits, long registerBits) {
+        while (f != BddManager.TRUE && f != BddManager.FALSE) {
+            int bit = bitOf(bdd.topVar(f));
+            long values = isRegisterBit(bit) ? registerBits : inputBits;
+            f = (values >>> positionOf(bit) & 1) != 0 ? bdd.high(f) : bdd.low(f);
+        }
+        return f == BddManager.TRUE;
+    }
+
+    /**
+     * @return The BDD of the input, register or output called {@code name};
+     * outputs shadow registers and inputs of the same name, as in the labels
+     * of {@link FvmFacadeImpl#transitionSystemFromCircuit}.
+     */
+    int signal(String name) {
+        for (int o = 0; o < outputs.size(); o++) {
+            if (outputs.name(o).equals(name)) {
+                return outputValues[o];
+            }
+        }
+        for (int i = 0; i < registers.size(); i++) {
+            if (registers.name(i).equals(name)) {
+                return bdd.var(variableOf(registerBit(i)));
+            }
+        }
+        for (int j = 0; j < inputs.size(); j++) {
+            if (inputs.name(j).equals(name)) {
+                return bdd.var(variableOf(inputBit(j)));
+            }
+        }
+        throw new IllegalArgumentException("No input, register or output named " + name);
+    }
+
+    /**
+     * Builds BDDs for a batch of functions of the state bits from their truth
+     * tables, given valuation by valuation in increasing order. Only one
+     * pending node per level and function is kept.
+     */
+    private final class TruthTable {
+        private final int[][] pending;
+        private final int[] results;
+
+        TruthTable(int[] results) {
+            this.pending = new int[results.length][bits()];
+            this.results = results;
+        }
+
+        // Bit f of values is function f's value at valuation t.
+        void add(long t, long values) {
+            int bits = bits();
+            for (int f = 0; f < pending.length; f++) {
+                int node = (values >>> f & 1) != 0 ? BddManager.TRUE : BddManager.FALSE;
+                int level = 0;
+                while (level < bits && (t >>> level & 1) != 0) {
+                    node = bdd.mk(variableOf(bits - 1 - level), pending[f][level], node);
+                    level++;
+                }
+                if (level == bits) {
+                    results[f] = node;
+                } else {
+                    pending[f][level] = node;
+                }
+            }
+        }
+    }
+}
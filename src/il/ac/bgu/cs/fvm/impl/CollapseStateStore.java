@@ -0,0 +1,263 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A {@link StateStore} that keeps states compressed, in the manner of
+ * SPIN's collapse mode and LTSmin's tree compression. A state is split into
+ * a vector of components, each interned per vector position, and the
+ * vector of component ids is folded pairwise into a binary tree whose
+ * nodes are interned per level and position. A state is then one entry of
+ * the tree's root table, and states that share parts of their vector share
+ * the nodes above those parts.
+ * <p>
+ * The store is exact: a state is reported new iff no equal state was
+ * added before.
+ */
+public class CollapseStateStore<S> implements StateStore<S> {
+
+    private static final Object PAIR = new Object();
+
+    // Stands for the length of a list or a valuation in a split state.
+    private static final class Shape {
+        private final boolean valuation;
+        private final int size;
+
+        Shape(boolean valuation, int size) {
+            this.valuation = valuation;
+            this.size = size;
+        }
+
+        @Override
+        public int hashCode() {
+            return valuation ? ~size : size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && ((Shape) o).valuation == valuation && ((Shape) o).size == size;
+        }
+    }
+
+    private final Function<? super S, ? extends List<?>> components;
+    private final List<Interner<Object>> leaves = new ArrayList<>();
+    // By vector length, then level, then position in the level.
+    private final Map<Integer, List<List<PairTable>>> trees = new HashMap<>();
+    private long size;
+
+    /**
+     * A store splitting states with {@link #components(Object)}.
+     */
+    public CollapseStateStore() {
+        this(CollapseStateStore::components);
+    }
+
+    /**
+     * @param components Splits a state into its components; equal states
+     * must give equal lists, and unequal ones unequal lists.
+     */
+    public CollapseStateStore(Function<? super S, ? extends List<?>> components) {
+        this.components = components;
+    }
+
+    /**
+     * The default split: a {@link Pair} into its two sides, a list - such as
+     * a channel system's location vector - into its elements, and a map from
+     * variable names, such as a program graph valuation, into its variables
+     * in name order. Anything else is a single component. Pairs and lengths
+     * are marked, so unequal states never split alike.
+     */
+    public static List<Object> components(Object state) {
+        List<Object> parts = new ArrayList<>();
+        split(state, parts);
+        return parts;
+    }
+
+    private static void split(Object state, List<Object> parts) {
+        if (state instanceof Pair) {
+            parts.add(PAIR);
+            split(((Pair<?, ?>) state).first, parts);
+            split(((Pair<?, ?>) state).second, parts);
+        } else if (state instanceof List) {
+            List<?> list = (List<?>) state;
+            parts.add(new Shape(false, list.size()));
+            for (Object element : list) {
+                split(element, parts);
+            }
+        } else if (state instanceof Map && namesOnly((Map<?, ?>) state)) {
+            List<Map.Entry<String, Object>> variables = new ArrayList<>();
+            for (Map.Entry<?, ?> variable : ((Map<?, ?>) state).entrySet()) {
+                variables.add(new AbstractMap.SimpleImmutableEntry<String, Object>((String) variable.getKey(), variable.getValue()));
+            }
+            // Iteration order depends on the map's history; name order does not.
+            variables.sort(Map.Entry.comparingByKey());
+            parts.add(new Shape(true, variables.size()));
+            parts.addAll(variables);
+        } else {
+            parts.add(state);
+        }
+    }
+
+    private static boolean namesOnly(Map<?, ?> map) {
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean add(S state) {
+        if (find(state, true)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(S state) {
+        return find(state, false);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return The number of interned tree nodes, one or more per state.
+     */
+    public long nodeCount() {
+        long nodes = 0;
+        for (List<List<PairTable>> tree : trees.values()) {
+            for (List<PairTable> level : tree) {
+                for (PairTable table : level) {
+                    nodes += table.size();
+                }
+            }
+        }
+        return nodes;
+    }
+
+    // Looks state up, adding it if insert; returns whether it was added, or else whether it was found.
+    private boolean find(S state, boolean insert) {
+        List<?> parts = components.apply(state);
+        int[] ids = new int[Math.max(parts.size(), 1)];
+        ids[0] = -1;
+        for (int i = 0; i < parts.size(); i++) {
+            if (i == leaves.size()) {
+                leaves.add(new Interner<>());
+            }
+            ids[i] = insert ? leaves.get(i).intern(parts.get(i)) : leaves.get(i).idOf(parts.get(i));
+            if (ids[i] < 0) {
+                return false;
+            }
+        }
+        List<List<PairTable>> tree = insert
+                ? trees.computeIfAbsent(parts.size(), k -> new ArrayList<>())
+                : trees.get(parts.size());
+        if (tree == null) {
+            return false;
+        }
+        int width = ids.length;
+        for (int level = 0; ; level++) {
+            if (level == tree.size()) {
+                if (!insert) {
+                    return false;
+                }
+                tree.add(new ArrayList<>());
+            }
+            List<PairTable> tables = tree.get(level);
+            int half = (width + 1) / 2;
+            for (int i = 0; i < half; i++) {
+                if (i == tables.size()) {
+                    if (!insert) {
+                        return false;
+                    }
+                    tables.add(new PairTable());
+                }
+                PairTable table = tables.get(i);
+                int right = 2 * i + 1 < width ? ids[2 * i + 1] : -1;
+                int known = table.size();
+                ids[i] = insert ? table.intern(ids[2 * i], right) : table.idOf(ids[2 * i], right);
+                if (ids[i] < 0) {
+                    return false;
+                }
+                if (half == 1) {
+                    return !insert || table.size() > known;
+                }
+            }
+            width = half;
+        }
+    }
+
+    // An open-addressing table numbering pairs of ids densely, in the order they are added.
+    private static final class PairTable {
+        private long[] keys = new long[16];
+        private int[] ids = filled(16);
+        private int size;
+
+        private static int[] filled(int length) {
+            int[] ids = new int[length];
+            Arrays.fill(ids, -1);
+            return ids;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int intern(int left, int right) {
+            long key = (long) left << 32 | right & 0xffffffffL;
+            int slot = slot(key);
+            if (ids[slot] >= 0) {
+                return ids[slot];
+            }
+            keys[slot] = key;
+            ids[slot] = size;
+            if (++size * 4 > keys.length * 3) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        int idOf(int left, int right) {
+            return ids[slot((long) left << 32 | right & 0xffffffffL)];
+        }
+
+        // The slot holding key, or the empty slot where it would go.
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            long h = key * 0x9E3779B97F4A7C15L;
+            int slot = (int) (h ^ h >>> 32) & mask;
+            while (ids[slot] >= 0 && keys[slot] != key) {
+                slot = slot + 1 & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new long[oldKeys.length * 2];
+            ids = filled(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIds[i] >= 0) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+}
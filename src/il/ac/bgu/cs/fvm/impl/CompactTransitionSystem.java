@@ -0,0 +1,602 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.exceptions.*;
+import il.ac.bgu.cs.fvm.transitionsystem.Transition;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A memory-lean transition system. States, actions and atomic propositions are
+ * interned to dense int ids; transitions are kept in CSR form
+ * ({@code offsets}/{@code actions}/{@code targets}), with each row sorted by
+ * (action, target); labels are per-state bit sets over proposition ids.
+ * <p>
+ * New transitions are buffered and merged into the CSR arrays on the next
+ * query, so the cheap pattern is "add everything, then query". Removed
+ * transitions are masked until the next merge.
+ * <p>
+ * States are only hashed by the interner, so a system whose states have a
+ * poorly spread {@code hashCode} can be given a better hash for them. The
+ * sets of states it returns are read-only and hold state ids.
+ */
+public class CompactTransitionSystem<S, A, P> implements IndexedTransitionSystem<S, A, P> {
+
+    private static final int[] NO_INTS = new int[0];
+    private static final long[] NO_BITS = new long[0];
+
+    private String name;
+    private final Interner<S> states;
+    private final Interner<A> actionIds = new Interner<>();
+    private final Interner<P> propositionIds = new Interner<>();
+    private final BitSet initial = new BitSet();
+    private long[][] labels = new long[16][];
+
+    // Forward CSR: row i is [offsets[i], offsets[i+1]) in actions/targets.
+    private int[] offsets = new int[1];
+    private int[] actions = NO_INTS;
+    private int[] targets = NO_INTS;
+    private BitSet removed = new BitSet();
+    private int transitionCount;
+
+    // Reverse CSR, rebuilt lazily from the forward one.
+    private int[] reverseOffsets;
+    private int[] reverseActions;
+    private int[] reverseSources;
+
+    // Transitions added since the last merge, as (from, action, to) triples.
+    private int[] pending = new int[48];
+    private int pendingCount;
+
+    public CompactTransitionSystem() {
+        this.states = new Interner<>();
+    }
+
+    /**
+     * @param stateHash A hash of the states that agrees with their equals.
+     * It is also applied to objects that are looked up as states, whatever
+     * their class.
+     */
+    CompactTransitionSystem(ToIntFunction<Object> stateHash) {
+        this.states = new Interner<>(stateHash);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void addAction(A anAction) {
+        actionIds.intern(anAction);
+    }
+
+    @Override
+    public void setInitial(S aState, boolean isInitial) throws StateNotFoundException {
+        initial.set(stateId(aState), isInitial);
+    }
+
+    @Override
+    public void addState(S s) {
+        int id = states.intern(s);
+        if (id >= labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(id + 1, labels.length * 2));
+        }
+    }
+
+    @Override
+    public void addTransition(Transition<S, A> t) throws FVMException {
+        int from = states.idOf(t.getFrom());
+        int to = states.idOf(t.getTo());
+        int action = actionIds.idOf(t.getAction());
+        if (from < 0 || to < 0 || action < 0) {
+            throw new InvalidTransitionException(t);
+        }
+        if (pendingCount * 3 == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingCount * 3] = from;
+        pending[pendingCount * 3 + 1] = action;
+        pending[pendingCount * 3 + 2] = to;
+        pendingCount++;
+    }
+
+    @Override
+    public Set<A> getActions() {
+        return actionIds.view();
+    }
+
+    @Override
+    public void addAtomicProposition(P p) {
+        propositionIds.intern(p);
+    }
+
+    @Override
+    public Set<P> getAtomicPropositions() {
+        return propositionIds.view();
+    }
+
+    @Override
+    public void addToLabel(S s, P l) throws FVMException {
+        int p = propositionIds.idOf(l);
+        if (p < 0) {
+            throw new InvalidLablingPairException(s, l);
+        }
+        int id = stateId(s);
+        long[] bits = labels[id];
+        if (bits == null || bits.length <= p >>> 6) {
+            bits = labels[id] = Arrays.copyOf(bits == null ? NO_BITS : bits, (p >>> 6) + 1);
+        }
+        bits[p >>> 6] |= 1L << p;
+    }
+
+    @Override
+    public Set<P> getLabel(S s) {
+        return labelOf(stateId(s));
+    }
+
+    @Override
+    public Set<S> getInitialStates() {
+        return new StateSet(initial.stream().toArray());
+    }
+
+    // A snapshot, since labels are not stored as sets.
+    @Override
+    public Map<S, Set<P>> getLabelingFunction() {
+        StateSet ids = new StateSet(IntStream.range(0, states.capacity()).filter(states::isLive).toArray());
+        List<Set<P>> labelSets = new ArrayList<>(ids.ids.length);
+        for (int id : ids.ids) {
+            labelSets.add(labelOf(id));
+        }
+        return new AbstractMap<S, Set<P>>() {
+            @Override
+            public Set<P> get(Object key) {
+                int i = ids.indexOf(key);
+                return i < 0 ? null : labelSets.get(i);
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return ids.indexOf(key) >= 0;
+            }
+
+            @Override
+            public Set<Entry<S, Set<P>>> entrySet() {
+                return new AbstractSet<Entry<S, Set<P>>>() {
+                    @Override
+                    public Iterator<Entry<S, Set<P>>> iterator() {
+                        Iterator<S> keys = ids.iterator();
+                        Iterator<Set<P>> values = labelSets.iterator();
+                        return new Iterator<Entry<S, Set<P>>>() {
+                            @Override
+                            public boolean hasNext() {
+                                return keys.hasNext();
+                            }
+
+                            @Override
+                            public Entry<S, Set<P>> next() {
+                                return new SimpleImmutableEntry<>(keys.next(), values.next());
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return ids.size();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public Set<S> getStates() {
+        return states.view();
+    }
+
+    @Override
+    public Set<Transition<S, A>> getTransitions() {
+        merge();
+        return Collections.unmodifiableSet(new AbstractSet<Transition<S, A>>() {
+            @Override
+            public Iterator<Transition<S, A>> iterator() {
+                merge();
+                return new Iterator<Transition<S, A>>() {
+                    private int row = 0;
+                    private int next = advance(0);
+
+                    private int advance(int from) {
+                        from = removed.nextClearBit(from);
+                        while (row < offsets.length - 1 && offsets[row + 1] <= from) {
+                            row++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < targets.length;
+                    }
+
+                    @Override
+                    public Transition<S, A> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Transition<S, A> t = new Transition<>(
+                                states.get(row), actionIds.get(actions[next]), states.get(targets[next]));
+                        next = advance(next + 1);
+                        return t;
+                    }
+                };
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Transition && find((Transition<?, ?>) o) >= 0;
+            }
+
+            @Override
+            public int size() {
+                merge();
+                return transitionCount;
+            }
+        });
+    }
+
+    @Override
+    public void removeAction(A a) throws FVMException {
+        int action = actionIds.idOf(a);
+        if (action < 0) {
+            return;
+        }
+        merge();
+        for (int i = removed.nextClearBit(0); i < actions.length; i = removed.nextClearBit(i + 1)) {
+            if (actions[i] == action) {
+                throw new DeletionOfAttachedActionException(a, TransitionSystemPart.TRANSITIONS);
+            }
+        }
+        actionIds.remove(a);
+    }
+
+    @Override
+    public void removeAtomicProposition(P p) throws FVMException {
+        int prop = propositionIds.idOf(p);
+        if (prop < 0) {
+            return;
+        }
+        for (long[] bits : labels) {
+            if (bits != null && bits.length > prop >>> 6 && (bits[prop >>> 6] & (1L << prop)) != 0) {
+                throw new DeletionOfAttachedAtomicPropositionException(
+                        p, TransitionSystemPart.LABELING_FUNCTION);
+            }
+        }
+        propositionIds.remove(p);
+    }
+
+    @Override
+    public void removeLabel(S s, P l) {
+        int id = states.idOf(s);
+        int p = propositionIds.idOf(l);
+        if (id >= 0 && p >= 0 && labels[id] != null && labels[id].length > p >>> 6) {
+            labels[id][p >>> 6] &= ~(1L << p);
+        }
+    }
+
+    @Override
+    public void removeState(S s) throws FVMException {
+        int id = stateId(s);
+        merge();
+        buildReverse();
+        if (offsets[id + 1] > removed.nextClearBit(offsets[id]) || reverseOffsets[id + 1] > reverseOffsets[id]) {
+            throw new DeletionOfAttachedStateException(s, TransitionSystemPart.TRANSITIONS);
+        }
+        if (!labelOf(id).isEmpty()) {
+            throw new DeletionOfAttachedStateException(s, TransitionSystemPart.LABELING_FUNCTION);
+        }
+        if (initial.get(id)) {
+            throw new DeletionOfAttachedStateException(s, TransitionSystemPart.INITIAL_STATES);
+        }
+        labels[id] = null;
+        states.remove(s);
+    }
+
+    @Override
+    public void removeTransition(Transition<S, A> t) {
+        int i = find(t);
+        if (i >= 0) {
+            removed.set(i);
+            transitionCount--;
+            reverseOffsets = null;
+        }
+    }
+
+    @Override
+    public Set<S> post(S s) {
+        return post(s, -1);
+    }
+
+    @Override
+    public Set<S> post(S s, A a) {
+        int action = actionIds.idOf(a);
+        return action < 0 ? new StateSet(NO_INTS) : post(s, action);
+    }
+
+    @Override
+    public Set<S> pre(S s) {
+        return pre(s, -1);
+    }
+
+    @Override
+    public Set<S> pre(S s, A a) {
+        int action = actionIds.idOf(a);
+        return action < 0 ? new StateSet(NO_INTS) : pre(s, action);
+    }
+
+    // action == -1 matches every action.
+    private Set<S> post(S s, int action) {
+        int id = stateId(s);
+        merge();
+        int[] result = new int[offsets[id + 1] - offsets[id]];
+        int count = 0;
+        for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+            if (!removed.get(i) && (action < 0 || actions[i] == action)) {
+                result[count++] = targets[i];
+            }
+        }
+        return new StateSet(sortUnique(result, count));
+    }
+
+    private Set<S> pre(S s, int action) {
+        int id = stateId(s);
+        merge();
+        buildReverse();
+        int[] result = new int[reverseOffsets[id + 1] - reverseOffsets[id]];
+        int count = 0;
+        for (int i = reverseOffsets[id]; i < reverseOffsets[id + 1]; i++) {
+            if (action < 0 || reverseActions[i] == action) {
+                result[count++] = reverseSources[i];
+            }
+        }
+        return new StateSet(sortUnique(result, count));
+    }
+
+    private static int[] sortUnique(int[] ids, int count) {
+        Arrays.sort(ids, 0, count);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || ids[i] != ids[size - 1]) {
+                ids[size++] = ids[i];
+            }
+        }
+        return size == ids.length ? ids : Arrays.copyOf(ids, size);
+    }
+
+    // A read-only set of states, held as their sorted ids.
+    private final class StateSet extends AbstractSet<S> {
+        private final int[] ids;
+
+        StateSet(int[] ids) {
+            this.ids = ids;
+        }
+
+        // Position of o's id in ids, or -1.
+        @SuppressWarnings("unchecked")
+        int indexOf(Object o) {
+            int id;
+            try {
+                id = states.idOf((S) o);
+            } catch (ClassCastException e) {
+                return -1;
+            }
+            int i = id < 0 ? -1 : Arrays.binarySearch(ids, id);
+            return i < 0 ? -1 : i;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        @Override
+        public Iterator<S> iterator() {
+            return new Iterator<S>() {
+                private int next;
+
+                @Override
+                public boolean hasNext() {
+                    return next < ids.length;
+                }
+
+                @Override
+                public S next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return states.get(ids[next++]);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    private int stateId(S s) {
+        int id = states.idOf(s);
+        if (id < 0) {
+            throw new StateNotFoundException(s);
+        }
+        return id;
+    }
+
+    private Set<P> labelOf(int id) {
+        Set<P> label = new HashSet<>();
+        long[] bits = labels[id];
+        if (bits != null) {
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    label.add(propositionIds.get((w << 6) + Long.numberOfTrailingZeros(word)));
+                }
+            }
+        }
+        return label;
+    }
+
+    // Position of t in the CSR arrays, or -1 if it is not a live transition.
+    private int find(Transition<?, ?> t) {
+        @SuppressWarnings("unchecked")
+        Transition<S, A> tt = (Transition<S, A>) t;
+        int from = states.idOf(tt.getFrom());
+        int to = states.idOf(tt.getTo());
+        int action = actionIds.idOf(tt.getAction());
+        if (from < 0 || to < 0 || action < 0) {
+            return -1;
+        }
+        merge();
+        int lo = offsets[from];
+        int hi = offsets[from + 1] - 1;
+        long key = key(action, to);
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long midKey = key(actions[mid], targets[mid]);
+            if (midKey < key) {
+                lo = mid + 1;
+            } else if (midKey > key) {
+                hi = mid - 1;
+            } else {
+                return removed.get(mid) ? -1 : mid;
+            }
+        }
+        return -1;
+    }
+
+    private static long key(int action, int to) {
+        return ((long) action << 32) | (to & 0xffffffffL);
+    }
+
+    @Override
+    public void settle() {
+        merge();
+        buildReverse();
+    }
+
+    // Folds pending transitions into the CSR arrays, dropping removed and duplicate ones.
+    private void merge() {
+        int n = states.capacity();
+        if (pendingCount == 0) {
+            if (offsets.length < n + 1) {
+                // Only new states: give them empty rows.
+                int end = offsets[offsets.length - 1];
+                int from = offsets.length;
+                offsets = Arrays.copyOf(offsets, n + 1);
+                Arrays.fill(offsets, from, n + 1, end);
+                reverseOffsets = null;
+            }
+            return;
+        }
+        int[] counts = new int[n + 1];
+        int oldRows = offsets.length - 1;
+        for (int row = 0; row < oldRows; row++) {
+            for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+                if (!removed.get(i)) {
+                    counts[row + 1]++;
+                }
+            }
+        }
+        for (int k = 0; k < pendingCount; k++) {
+            counts[pending[k * 3] + 1]++;
+        }
+        for (int row = 0; row < n; row++) {
+            counts[row + 1] += counts[row];
+        }
+
+        long[] keys = new long[counts[n]];
+        int[] fill = Arrays.copyOf(counts, n);
+        for (int row = 0; row < oldRows; row++) {
+            for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+                if (!removed.get(i)) {
+                    keys[fill[row]++] = key(actions[i], targets[i]);
+                }
+            }
+        }
+        for (int k = 0; k < pendingCount; k++) {
+            int row = pending[k * 3];
+            keys[fill[row]++] = key(pending[k * 3 + 1], pending[k * 3 + 2]);
+        }
+
+        int[] newOffsets = new int[n + 1];
+        int[] newActions = new int[keys.length];
+        int[] newTargets = new int[keys.length];
+        int size = 0;
+        for (int row = 0; row < n; row++) {
+            newOffsets[row] = size;
+            Arrays.sort(keys, counts[row], counts[row + 1]);
+            for (int i = counts[row]; i < counts[row + 1]; i++) {
+                if (i > counts[row] && keys[i] == keys[i - 1]) {
+                    continue;
+                }
+                newActions[size] = (int) (keys[i] >>> 32);
+                newTargets[size] = (int) keys[i];
+                size++;
+            }
+        }
+        newOffsets[n] = size;
+
+        offsets = newOffsets;
+        actions = size == keys.length ? newActions : Arrays.copyOf(newActions, size);
+        targets = size == keys.length ? newTargets : Arrays.copyOf(newTargets, size);
+        removed = new BitSet();
+        transitionCount = size;
+        pendingCount = 0;
+        reverseOffsets = null;
+    }
+
+    private void buildReverse() {
+        if (reverseOffsets != null) {
+            return;
+        }
+        int n = offsets.length - 1;
+        int[] counts = new int[n + 1];
+        for (int i = removed.nextClearBit(0); i < targets.length; i = removed.nextClearBit(i + 1)) {
+            counts[targets[i] + 1]++;
+        }
+        for (int row = 0; row < n; row++) {
+            counts[row + 1] += counts[row];
+        }
+        int[] fill = Arrays.copyOf(counts, n);
+        int[] sources = new int[counts[n]];
+        int[] sourceActions = new int[counts[n]];
+        for (int row = 0; row < n; row++) {
+            for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+                if (!removed.get(i)) {
+                    int slot = fill[targets[i]]++;
+                    sources[slot] = row;
+                    sourceActions[slot] = actions[i];
+                }
+            }
+        }
+        reverseOffsets = counts;
+        reverseSources = sources;
+        reverseActions = sourceActions;
+    }
+}
@@ -0,0 +1,311 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.channelsystem.InterleavingActDef;
+import il.ac.bgu.cs.fvm.channelsystem.ParserBasedInterleavingActDef;
+import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaLexer;
+import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaParser;
+import il.ac.bgu.cs.fvm.programgraph.ActionDef;
+import il.ac.bgu.cs.fvm.programgraph.ConditionDef;
+import il.ac.bgu.cs.fvm.programgraph.ParserBasedActDef;
+import il.ac.bgu.cs.fvm.programgraph.ParserBasedCondDef;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The conditions and actions of one program graph, each parsed once into a
+ * tree of closures that is evaluated directly against a valuation.
+ * <p>
+ * Compiled trees stand in for {@link ParserBasedCondDef} and
+ * {@link ParserBasedActDef} only. Any other definition, and any string the
+ * trees do not cover - channel operations, {@code size}, powers - goes to the
+ * definitions themselves, as does any evaluation that reads a variable the
+ * valuation does not hold. A compiled action applied to a {@link Valuation}
+ * gives a valuation of the same pool.
+ */
+class CompiledDefinitions {
+
+    private interface IntExpr {
+        int value(Map<String, Object> eval);
+    }
+
+    private interface BoolExpr {
+        boolean test(Map<String, Object> eval);
+    }
+
+    private interface Effect {
+        Map<String, Object> apply(Map<String, Object> eval);
+    }
+
+    // Thrown by compiled trees that cannot decide an input, at compile time or at evaluation time.
+    private static final class Undecided extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private static final Undecided INSTANCE = new Undecided();
+
+        private Undecided() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final Map<String, Optional<BoolExpr>> conditions = new ConcurrentHashMap<>();
+    private final Map<String, Optional<Effect>> effects = new ConcurrentHashMap<>();
+
+    /**
+     * @return An evaluator for this graph's conditions and actions under the
+     * given definitions, in the precedence used by
+     * {@code transitionSystemFromProgramGraph}: handshake actions first, then
+     * {@code actionDefs}.
+     */
+    Evaluator evaluator(Set<ActionDef> actionDefs, Set<ConditionDef> conditionDefs) {
+        return new Evaluator(actionDefs, conditionDefs);
+    }
+
+    class Evaluator {
+        private final Set<ActionDef> actionDefs;
+        private final Set<ConditionDef> conditionDefs;
+        private final boolean compiledActions;
+        private final boolean compiledConditions;
+        private final InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
+        private final Map<Object, ActionKind> kinds = new ConcurrentHashMap<>();
+
+        private Evaluator(Set<ActionDef> actionDefs, Set<ConditionDef> conditionDefs) {
+            this.actionDefs = actionDefs;
+            this.conditionDefs = conditionDefs;
+            this.compiledActions = onlyOf(actionDefs, ParserBasedActDef.class);
+            this.compiledConditions = onlyOf(conditionDefs, ParserBasedCondDef.class);
+        }
+
+        boolean evaluate(Map<String, Object> eval, String condition) {
+            if (compiledConditions) {
+                Optional<BoolExpr> compiled = conditions.computeIfAbsent(condition, CompiledDefinitions::compileCondition);
+                if (compiled.isPresent()) {
+                    try {
+                        return compiled.get().test(eval);
+                    } catch (Undecided | ArithmeticException e) {
+                        // Fall through to the definitions.
+                    }
+                }
+            }
+            return ConditionDef.evaluate(conditionDefs, eval, condition);
+        }
+
+        /**
+         * @return The valuation after {@code action}, or {@code null} if the
+         * action is not enabled in {@code eval}.
+         */
+        Map<String, Object> effect(Map<String, Object> eval, Object action) {
+            switch (kinds.computeIfAbsent(action, this::kindOf)) {
+                case HANDSHAKE:
+                    return interleavingActDef.effect(eval, action);
+                case DEFINED:
+                    if (compiledActions) {
+                        Optional<Effect> compiled = effects.computeIfAbsent(action.toString(), CompiledDefinitions::compileAction);
+                        if (compiled.isPresent()) {
+                            try {
+                                return compiled.get().apply(eval);
+                            } catch (Undecided | ArithmeticException e) {
+                                // Fall through to the definitions.
+                            }
+                        }
+                    }
+                    return ActionDef.effect(actionDefs, eval, action);
+                default:
+                    return eval;
+            }
+        }
+
+        private ActionKind kindOf(Object action) {
+            if (interleavingActDef.isMatchingAction(action)) {
+                return ActionKind.HANDSHAKE;
+            }
+            return ActionDef.isMatchingAction(actionDefs, action) ? ActionKind.DEFINED : ActionKind.UNDEFINED;
+        }
+    }
+
+    private enum ActionKind {
+        HANDSHAKE, DEFINED, UNDEFINED
+    }
+
+    private static boolean onlyOf(Set<?> defs, Class<?> type) {
+        for (Object def : defs) {
+            if (def.getClass() != type) {
+                return false;
+            }
+        }
+        return !defs.isEmpty();
+    }
+
+    private static Optional<BoolExpr> compileCondition(String condition) {
+        if (condition.trim().isEmpty()) {
+            return Optional.of(eval -> true);
+        }
+        NanoPromelaParser parser = parser(condition);
+        try {
+            NanoPromelaParser.BoolexprContext tree = parser.boolexpr();
+            return parsedCompletely(parser) ? Optional.of(compile(tree)) : Optional.empty();
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<Effect> compileAction(String action) {
+        NanoPromelaParser parser = parser(action);
+        try {
+            NanoPromelaParser.StmtContext tree = parser.stmt();
+            if (!parsedCompletely(parser)) {
+                return Optional.empty();
+            }
+            if (tree.skipstmt() != null) {
+                return Optional.of(eval -> eval);
+            }
+            if (tree.assstmt() != null) {
+                String variable = tree.assstmt().VARNAME().getText();
+                IntExpr value = compile(tree.assstmt().intexpr());
+                return Optional.of(eval -> {
+                    if (eval instanceof Valuation) {
+                        return ((Valuation) eval).with(variable, value.value(eval));
+                    }
+                    Map<String, Object> result = new HashMap<>(eval);
+                    result.put(variable, value.value(eval));
+                    return result;
+                });
+            }
+            if (tree.atomicstmt() != null) {
+                List<NanoPromelaParser.IntexprContext> values = tree.atomicstmt().intexpr();
+                String[] variables = new String[values.size()];
+                IntExpr[] compiled = new IntExpr[values.size()];
+                for (int i = 0; i < values.size(); i++) {
+                    variables[i] = tree.atomicstmt().VARNAME(i).getText();
+                    compiled[i] = compile(values.get(i));
+                }
+                return Optional.of(eval -> {
+                    if (eval instanceof Valuation) {
+                        Valuation result = (Valuation) eval;
+                        for (int i = 0; i < variables.length; i++) {
+                            result = result.with(variables[i], compiled[i].value(result));
+                        }
+                        return result;
+                    }
+                    Map<String, Object> result = new HashMap<>(eval);
+                    for (int i = 0; i < variables.length; i++) {
+                        result.put(variables[i], compiled[i].value(result));
+                    }
+                    return result;
+                });
+            }
+            return Optional.empty();
+        } catch (RuntimeException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static NanoPromelaParser parser(String source) {
+        NanoPromelaLexer lexer = new NanoPromelaLexer(new ANTLRInputStream(source));
+        lexer.removeErrorListeners();
+        NanoPromelaParser parser = new NanoPromelaParser(new CommonTokenStream(lexer));
+        parser.removeErrorListeners();
+        return parser;
+    }
+
+    private static boolean parsedCompletely(NanoPromelaParser parser) {
+        return parser.getNumberOfSyntaxErrors() == 0 && parser.getCurrentToken().getType() == Token.EOF;
+    }
+
+    private static BoolExpr compile(NanoPromelaParser.BoolexprContext tree) {
+        if (tree.TRUE() != null) {
+            return eval -> true;
+        }
+        if (tree.FALSE() != null) {
+            return eval -> false;
+        }
+        if (tree.OPAR() != null) {
+            return compile(tree.boolexpr(0));
+        }
+        if (tree.NOT() != null) {
+            BoolExpr operand = compile(tree.boolexpr(0));
+            return eval -> !operand.test(eval);
+        }
+        if (tree.AND() != null) {
+            BoolExpr left = compile(tree.boolexpr(0));
+            BoolExpr right = compile(tree.boolexpr(1));
+            return eval -> left.test(eval) && right.test(eval);
+        }
+        if (tree.OR() != null) {
+            BoolExpr left = compile(tree.boolexpr(0));
+            BoolExpr right = compile(tree.boolexpr(1));
+            return eval -> left.test(eval) || right.test(eval);
+        }
+        if (tree.op == null) {
+            throw Undecided.INSTANCE;
+        }
+        IntExpr left = compile(tree.intexpr(0));
+        IntExpr right = compile(tree.intexpr(1));
+        switch (tree.op.getType()) {
+            case NanoPromelaParser.LT:
+                return eval -> left.value(eval) < right.value(eval);
+            case NanoPromelaParser.LTEQ:
+                return eval -> left.value(eval) <= right.value(eval);
+            case NanoPromelaParser.GT:
+                return eval -> left.value(eval) > right.value(eval);
+            case NanoPromelaParser.GTEQ:
+                return eval -> left.value(eval) >= right.value(eval);
+            case NanoPromelaParser.EQ:
+                return eval -> left.value(eval) == right.value(eval);
+            case NanoPromelaParser.NEQ:
+                return eval -> left.value(eval) != right.value(eval);
+            default:
+                throw Undecided.INSTANCE;
+        }
+    }
+
+    private static IntExpr compile(NanoPromelaParser.IntexprContext tree) {
+        if (tree.getChildCount() == 1 && tree.INT() != null) {
+            int constant = Integer.parseInt(tree.INT().getText());
+            return eval -> constant;
+        }
+        if (tree.getChildCount() == 1 && tree.VARNAME() != null) {
+            String variable = tree.VARNAME().getText();
+            return eval -> {
+                Object value = eval.get(variable);
+                if (!(value instanceof Integer)) {
+                    throw Undecided.INSTANCE;
+                }
+                return (Integer) value;
+            };
+        }
+        if (tree.OPAR() != null) {
+            return compile(tree.intexpr(0));
+        }
+        if (tree.getChildCount() == 2 && tree.MINUS() != null) {
+            IntExpr operand = compile(tree.intexpr(0));
+            return eval -> -operand.value(eval);
+        }
+        if (tree.op == null) {
+            // Powers and channel sizes.
+            throw Undecided.INSTANCE;
+        }
+        IntExpr left = compile(tree.intexpr(0));
+        IntExpr right = compile(tree.intexpr(1));
+        switch (tree.op.getType()) {
+            case NanoPromelaParser.PLUS:
+                return eval -> left.value(eval) + right.value(eval);
+            case NanoPromelaParser.MINUS:
+                return eval -> left.value(eval) - right.value(eval);
+            case NanoPromelaParser.MULT:
+                return eval -> left.value(eval) * right.value(eval);
+            case NanoPromelaParser.DIV:
+                return eval -> left.value(eval) / right.value(eval);
+            case NanoPromelaParser.MOD:
+                return eval -> left.value(eval) % right.value(eval);
+            default:
+                throw Undecided.INSTANCE;
+        }
+    }
+}
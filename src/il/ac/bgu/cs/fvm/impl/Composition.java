@@ -0,0 +1,246 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.transitionsystem.Transition;
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The parallel composition of any number of transition systems, explored in
+ * a single pass from the initial global states. A handshaking action moves
+ * every component at once, any other action moves one component; this is the
+ * system obtained by chaining the two-way handshaking interleave, without the
+ * nested pairs and the intermediate products.
+ * <p>
+ * Component states and actions are interned up front, transitions are kept
+ * per component in CSR form, and a global state is the int array of its
+ * component state ids.
+ */
+class Composition<S, A, P> {
+
+    private final List<? extends TransitionSystem<S, A, P>> systems;
+    private final Interner<A> actionIds = new Interner<>();
+    private final boolean[] handshake;
+    private final List<Interner<S>> states = new ArrayList<>();
+    private final List<List<Set<P>>> labels = new ArrayList<>();
+    // Component i's row for state s is [offsets[i][s], offsets[i][s+1]) in actions[i]/targets[i].
+    private final int[][] offsets;
+    private final int[][] actions;
+    private final int[][] targets;
+
+    Composition(List<? extends TransitionSystem<S, A, P>> systems, Set<A> handShakingActions) {
+        if (systems.isEmpty()) {
+            throw new IllegalArgumentException("Nothing to compose");
+        }
+        this.systems = systems;
+        int n = systems.size();
+        offsets = new int[n][];
+        actions = new int[n][];
+        targets = new int[n][];
+        for (TransitionSystem<S, A, P> ts : systems) {
+            for (A action : ts.getActions()) {
+                actionIds.intern(action);
+            }
+        }
+        handshake = new boolean[actionIds.capacity()];
+        for (A action : handShakingActions) {
+            int id = actionIds.idOf(action);
+            if (id >= 0) {
+                handshake[id] = true;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            index(i, systems.get(i));
+        }
+    }
+
+    private void index(int component, TransitionSystem<S, A, P> ts) {
+        Interner<S> ids = new Interner<>();
+        List<Set<P>> componentLabels = new ArrayList<>();
+        for (S s : ts.getStates()) {
+            ids.intern(s);
+            componentLabels.add(ts.getLabel(s));
+        }
+        Set<Transition<S, A>> transitions = ts.getTransitions();
+        int[] rowOffsets = new int[ids.capacity() + 1];
+        for (Transition<S, A> t : transitions) {
+            rowOffsets[ids.idOf(t.getFrom()) + 1]++;
+        }
+        for (int s = 0; s < ids.capacity(); s++) {
+            rowOffsets[s + 1] += rowOffsets[s];
+        }
+        int[] rowActions = new int[transitions.size()];
+        int[] rowTargets = new int[transitions.size()];
+        int[] fill = Arrays.copyOf(rowOffsets, ids.capacity());
+        for (Transition<S, A> t : transitions) {
+            int slot = fill[ids.idOf(t.getFrom())]++;
+            rowActions[slot] = actionIds.idOf(t.getAction());
+            rowTargets[slot] = ids.idOf(t.getTo());
+        }
+        states.add(ids);
+        labels.add(componentLabels);
+        offsets[component] = rowOffsets;
+        actions[component] = rowActions;
+        targets[component] = rowTargets;
+    }
+
+    /**
+     * Adds the reachable part of the composition to {@code newTS}, whose
+     * states are the lists of component states.
+     */
+    void buildInto(TransitionSystem<List<S>, A, P> newTS) {
+        int n = systems.size();
+        for (TransitionSystem<S, A, P> ts : systems) {
+            newTS.addAllActions(ts.getActions());
+            newTS.addAllAtomicPropositions(ts.getAtomicPropositions());
+        }
+        Map<GlobalState<S>, GlobalState<S>> visited = new HashMap<>();
+        Deque<GlobalState<S>> frontier = new ArrayDeque<>();
+        int[][] initials = new int[n][];
+        for (int i = 0; i < n; i++) {
+            Interner<S> ids = states.get(i);
+            initials[i] = systems.get(i).getInitialStates().stream().mapToInt(ids::idOf).toArray();
+        }
+        combine(initials, new int[n], 0, ids -> {
+            GlobalState<S> state = discover(ids, newTS, visited, frontier);
+            newTS.setInitial(state, true);
+        });
+        while (!frontier.isEmpty()) {
+            GlobalState<S> state = frontier.poll();
+            int[] ids = state.ids;
+            for (int i = 0; i < n; i++) {
+                for (int k = offsets[i][ids[i]]; k < offsets[i][ids[i] + 1]; k++) {
+                    int action = actions[i][k];
+                    if (handshake[action]) {
+                        continue;
+                    }
+                    int[] next = ids.clone();
+                    next[i] = targets[i][k];
+                    addTransition(newTS, state, action, discover(next, newTS, visited, frontier));
+                }
+            }
+            Set<Integer> handshakes = new HashSet<>();
+            for (int k = offsets[0][ids[0]]; k < offsets[0][ids[0] + 1]; k++) {
+                int action = actions[0][k];
+                if (handshake[action] && handshakes.add(action)) {
+                    int[][] choices = new int[n][];
+                    for (int i = 0; i < n; i++) {
+                        choices[i] = targetsOn(i, ids[i], action);
+                    }
+                    combine(choices, new int[n], 0,
+                            next -> addTransition(newTS, state, action, discover(next, newTS, visited, frontier)));
+                }
+            }
+        }
+    }
+
+    private GlobalState<S> discover(
+            int[] ids,
+            TransitionSystem<List<S>, A, P> newTS,
+            Map<GlobalState<S>, GlobalState<S>> visited,
+            Deque<GlobalState<S>> frontier) {
+        GlobalState<S> state = new GlobalState<>(ids.clone(), states);
+        GlobalState<S> known = visited.putIfAbsent(state, state);
+        if (known != null) {
+            return known;
+        }
+        newTS.addState(state);
+        for (int i = 0; i < ids.length; i++) {
+            for (P label : labels.get(i).get(ids[i])) {
+                newTS.addToLabel(state, label);
+            }
+        }
+        frontier.add(state);
+        return state;
+    }
+
+    private void addTransition(TransitionSystem<List<S>, A, P> newTS, GlobalState<S> from, int action, GlobalState<S> to) {
+        newTS.addTransition(new Transition<>(from, actionIds.get(action), to));
+    }
+
+    private int[] targetsOn(int component, int state, int action) {
+        int from = offsets[component][state];
+        int to = offsets[component][state + 1];
+        int[] result = new int[to - from];
+        int count = 0;
+        for (int k = from; k < to; k++) {
+            if (actions[component][k] == action) {
+                result[count++] = targets[component][k];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // Passes every tuple with tuple[i] drawn from choices[i] to sink; tuple is reused between calls.
+    private static void combine(int[][] choices, int[] tuple, int position, Consumer<int[]> sink) {
+        if (position == choices.length) {
+            sink.accept(tuple);
+            return;
+        }
+        for (int choice : choices[position]) {
+            tuple[position] = choice;
+            combine(choices, tuple, position + 1, sink);
+        }
+    }
+
+    /**
+     * A global state: one state id per component, presented as the list of
+     * component states. Equal to any list with the same elements.
+     */
+    static final class GlobalState<S> extends AbstractList<S> implements RandomAccess {
+        private final int[] ids;
+        private final List<Interner<S>> components;
+        private final int hash;
+
+        GlobalState(int[] ids, List<Interner<S>> components) {
+            this.ids = ids;
+            this.components = components;
+            int h = 1;
+            for (int i = 0; i < ids.length; i++) {
+                h = 31 * h + components.get(i).get(ids[i]).hashCode();
+            }
+            this.hash = h;
+        }
+
+        int id(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public S get(int index) {
+            return components.get(index).get(ids[index]);
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof GlobalState) {
+                GlobalState<?> other = (GlobalState<?>) o;
+                if (other.components == (Object) components) {
+                    return Arrays.equals(ids, other.ids);
+                }
+            }
+            return super.equals(o);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The visited states of a {@link ReachabilityEngine} search that spilled to
+ * disk: their codes, sorted, in a memory-mapped file. States are decoded
+ * when read, so the store holds none of them on the heap. It is read-only,
+ * and the file stays until the store is closed.
+ * <p>
+ * A store of fingerprints, from {@link ReachabilityEngine#spillVisitedToDisk},
+ * cannot decode its states: it answers {@link #contains} only, and is not
+ * {@link #isExact() exact}.
+ */
+public class DiskStateStore<S> implements StateStore<S>, AutoCloseable {
+
+    private final LongFile codes;
+    private final ToLongFunction<? super S> encode;
+    private final LongFunction<? extends S> decode;
+
+    DiskStateStore(LongFile codes, ToLongFunction<? super S> encode, LongFunction<? extends S> decode) {
+        this.codes = codes;
+        this.encode = encode;
+        this.decode = decode;
+    }
+
+    /**
+     * @throws UnsupportedOperationException Always; the search that filled
+     * the store is over.
+     */
+    @Override
+    public boolean add(S state) {
+        throw new UnsupportedOperationException("The states of a finished disk search are read-only");
+    }
+
+    @Override
+    public boolean contains(S state) {
+        long code = encode.applyAsLong(state);
+        long low = 0;
+        long high = codes.size() - 1;
+        while (low <= high) {
+            long middle = (low + high) >>> 1;
+            long found = codes.get(middle);
+            if (found < code) {
+                low = middle + 1;
+            } else if (found > code) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isExact() {
+        return decode != null;
+    }
+
+    @Override
+    public long size() {
+        return codes.size();
+    }
+
+    /**
+     * Deletes the file behind the store, which is then empty.
+     */
+    @Override
+    public void close() {
+        codes.delete();
+    }
+
+    /**
+     * @return A read-only view of the states, decoded as they are read.
+     * @throws UnsupportedOperationException If the store holds fingerprints.
+     */
+    public Set<S> asSet() {
+        if (decode == null) {
+            throw new UnsupportedOperationException("A store of fingerprints cannot list its states");
+        }
+        return new AbstractSet<S>() {
+            @Override
+            public Iterator<S> iterator() {
+                return new Iterator<S>() {
+                    private long next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < codes.size();
+                    }
+
+                    @Override
+                    public S next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return decode.apply(codes.get(next++));
+                    }
+                };
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean contains(Object o) {
+                try {
+                    return DiskStateStore.this.contains((S) o);
+                } catch (ClassCastException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public int size() {
+                return (int) Math.min(codes.size(), Integer.MAX_VALUE);
+            }
+        };
+    }
+}
@@ -0,0 +1,14 @@
+package il.ac.bgu.cs.fvm.impl;
+
+/**
+ * An algorithm deciding whether a Buchi graph has an accepting run.
+ *
+ * @see FvmFacadeImpl#setEmptinessCheck(EmptinessCheck)
+ */
+public interface EmptinessCheck {
+
+    /**
+     * @return An accepting lasso of {@code graph}, or {@code null} if there is none.
+     */
+    <N> Lasso<N> findAcceptingCycle(BuchiGraph<N> graph);
+}
@@ -10,7 +10,6 @@ import il.ac.bgu.cs.fvm.circuits.Circuit;
 import il.ac.bgu.cs.fvm.exceptions.ActionNotFoundException;
 import il.ac.bgu.cs.fvm.exceptions.StateNotFoundException;
 import il.ac.bgu.cs.fvm.ltl.LTL;
-import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaFileReader;
 import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaParser;
 import il.ac.bgu.cs.fvm.programgraph.*;
 import il.ac.bgu.cs.fvm.transitionsystem.AlternatingSequence;
@@ -20,10 +19,19 @@ import il.ac.bgu.cs.fvm.util.Pair;
 import il.ac.bgu.cs.fvm.verification.VerificationFailed;
 import il.ac.bgu.cs.fvm.verification.VerificationResult;
 import il.ac.bgu.cs.fvm.verification.VerificationSucceeded;
-import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 /**
  * Implement the methods in this class. You may add additional classes as you
@@ -32,8 +40,140 @@ import java.util.*;
  */
 public class FvmFacadeImpl implements FvmFacade {
 
+    private TransitionSystemRepresentation representation = TransitionSystemRepresentation.HASHED;
+    private SearchOrder searchOrder = SearchOrder.DFS;
+    private Supplier<? extends StateStore<?>> stateStores = HashStateStore::new;
+    private Path spillDirectory;
+    private int spillBufferedStates;
+    private EmptinessCheck emptinessCheck = new NestedDepthFirstSearch();
+    private boolean onTheFlyProduct = true;
+    private boolean reachableInterleaving = false;
+    // Keyed by identity, as program graphs do not override equals.
+    private final Map<ProgramGraph<?, ?>, CompiledDefinitions> compiledDefinitions =
+            Collections.synchronizedMap(new WeakHashMap<>());
+    private int circuitCacheCapacity = 0;
+    // Keyed by identity: circuits that are equal but distinct may still compute different functions.
+    private final WeakIdentityMap<Circuit, CircuitEvaluationCache> circuitCaches = new WeakIdentityMap<>();
+    private volatile NanoPromelaParseCache nanoPromelaCache = new NanoPromelaParseCache(64);
+
+    /**
+     * Selects the class of the transition systems created by this facade,
+     * including the ones built by the composition and translation methods,
+     * except {@link #transitionSystemFromCircuit}.
+     */
+    public void setTransitionSystemRepresentation(TransitionSystemRepresentation representation) {
+        this.representation = representation;
+    }
+
+    /**
+     * Selects the exploration order used by {@link #reach(TransitionSystem)}
+     * and the unreachable-state pruning built on it.
+     */
+    public void setSearchOrder(SearchOrder searchOrder) {
+        this.searchOrder = searchOrder;
+    }
+
+    /**
+     * Selects the visited-state store used by reachability searches, such as
+     * {@code CollapseStateStore::new} to keep visited states compressed.
+     * With a store other than a {@link HashStateStore},
+     * {@link #reach(TransitionSystem)} returns a view of the store, which
+     * iterates by filtering the states of the transition system searched.
+     * {@code reach} rejects stores that are not {@link StateStore#isExact()
+     * exact}; for a lossy search, use
+     * {@link #bitstateReach(TransitionSystem, long, int)}. Pruning the
+     * unreachable states of built systems always uses a
+     * {@link HashStateStore}.
+     */
+    public void setStateStoreFactory(Supplier<? extends StateStore<?>> stateStores) {
+        this.stateStores = stateStores;
+    }
+
+    /**
+     * Makes {@link #reach(TransitionSystem)} keep its visited states in files
+     * under {@code directory}, as sorted 64-bit fingerprints, with at most
+     * {@code bufferedStates} unchecked successors and the states waiting to
+     * be expanded in memory; see {@link ReachabilityEngine#spillVisitedToDisk}.
+     * The search order and state store settings are then ignored. Nothing is
+     * kept per visited state on the heap, but fingerprints may collide, so a
+     * state may be missed with a probability of about
+     * n<sup>2</sup>/2<sup>65</sup> for n states. The returned set is then also
+     * an {@link AutoCloseable}; closing it deletes its file. A {@code null}
+     * directory turns spilling off.
+     */
+    public void setDiskSpilling(Path directory, int bufferedStates) {
+        if (directory != null && bufferedStates < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive, got " + bufferedStates);
+        }
+        this.spillDirectory = directory;
+        this.spillBufferedStates = bufferedStates;
+    }
+
+    /**
+     * Selects the accepting-cycle search behind
+     * {@link #verifyAnOmegaRegularProperty(TransitionSystem, Automaton)}.
+     */
+    public void setEmptinessCheck(EmptinessCheck emptinessCheck) {
+        this.emptinessCheck = emptinessCheck;
+    }
+
+    /**
+     * When {@code false}, verification runs on the eagerly built
+     * {@link #product(TransitionSystem, Automaton)} instead of exploring the
+     * product on the fly.
+     */
+    public void setOnTheFlyProduct(boolean onTheFlyProduct) {
+        this.onTheFlyProduct = onTheFlyProduct;
+    }
+
+    /**
+     * When {@code true}, {@link #interleave(TransitionSystem, TransitionSystem)}
+     * builds only the states reachable from the initial ones, like the
+     * handshaking overload always does, instead of the full product; and
+     * {@link #interleave(ProgramGraph, ProgramGraph)} likewise builds only
+     * the locations reachable from the initial ones, ignoring conditions.
+     */
+    public void setReachableInterleaving(boolean reachableInterleaving) {
+        this.reachableInterleaving = reachableInterleaving;
+    }
+
+    /**
+     * Bounds the number of register updates and outputs remembered per
+     * circuit; 0, the default, turns the cache off. Circuits are told apart
+     * by identity, so a cache is only reused for the same circuit object,
+     * which must not change in between. Drops the caches filled so far.
+     */
+    public void setCircuitCacheCapacity(int circuitCacheCapacity) {
+        this.circuitCacheCapacity = circuitCacheCapacity;
+        circuitCaches.clear();
+    }
+
+    /**
+     * @return The evaluation cache used for {@code c}, with its hit and miss
+     * counts.
+     */
+    public CircuitEvaluationCache getCircuitEvaluationCache(Circuit c) {
+        return circuitCaches.computeIfAbsent(c, k -> new CircuitEvaluationCache(k, circuitCacheCapacity));
+    }
+
+    /**
+     * Bounds the number of NanoPromela syntax trees kept for reuse by the
+     * {@code programGraphFromNanoPromela} methods; 0 turns the cache off.
+     * Drops the trees kept so far.
+     */
+    public void setNanoPromelaCacheCapacity(int capacity) {
+        nanoPromelaCache = new NanoPromelaParseCache(capacity);
+    }
+
+    public NanoPromelaParseCache getNanoPromelaParseCache() {
+        return nanoPromelaCache;
+    }
+
     @Override
     public <S, A, P> TransitionSystem<S, A, P> createTransitionSystem() {
+        if (representation == TransitionSystemRepresentation.COMPACT) {
+            return new CompactTransitionSystem<>();
+        }
         return new TransitionSystemImpl<>();
     }
 
@@ -140,6 +280,9 @@ public class FvmFacadeImpl implements FvmFacade {
         if (!ts.getStates().contains(s)) {
             throw new StateNotFoundException(s);
         }
+        if (ts instanceof IndexedTransitionSystem) {
+            return ((IndexedTransitionSystem<S, ?, ?>) ts).post(s);
+        }
         Set<S> reachableStates = new HashSet<>();
         Set<? extends Transition<S, ?>> transitions = ts.getTransitions();
         for (Transition<S, ?> transition : transitions) {
@@ -168,6 +311,9 @@ public class FvmFacadeImpl implements FvmFacade {
         if (!ts.getActions().contains(a)) {
             throw new ActionNotFoundException(a);
         }
+        if (ts instanceof IndexedTransitionSystem) {
+            return ((IndexedTransitionSystem<S, A, ?>) ts).post(s, a);
+        }
         Set<S> reachableStates = new HashSet<>();
         Set<Transition<S, A>> transitions = ts.getTransitions();
         for (Transition<S, A> transition : transitions) {
@@ -196,6 +342,9 @@ public class FvmFacadeImpl implements FvmFacade {
         if (!ts.getStates().contains(s)) {
             throw new StateNotFoundException(s);
         }
+        if (ts instanceof IndexedTransitionSystem) {
+            return ((IndexedTransitionSystem<S, ?, ?>) ts).pre(s);
+        }
         Set<S> preOfs = new HashSet<>();
         Set<? extends Transition<S, ?>> transitions = ts.getTransitions();
         for (Transition<S, ?> transition : transitions) {
@@ -223,6 +372,9 @@ public class FvmFacadeImpl implements FvmFacade {
         if (!ts.getActions().contains(a)) {
             throw new ActionNotFoundException(a);
         }
+        if (ts instanceof IndexedTransitionSystem) {
+            return ((IndexedTransitionSystem<S, A, ?>) ts).pre(s, a);
+        }
         Set<S> preOfsWitha = new HashSet<>();
         Set<Transition<S, A>> transitions = ts.getTransitions();
         for (Transition<S, A> transition : transitions) {
@@ -247,25 +399,91 @@ public class FvmFacadeImpl implements FvmFacade {
 
     @Override
     public <S, A> Set<S> reach(TransitionSystem<S, A, ?> ts) {
-        Set<S> reachableStates = new HashSet<>();
-        for (S initialState : ts.getInitialStates()) {
-            reach(initialState, ts, reachableStates);
+        if (spillDirectory != null) {
+            StateStore<S> visited = new ReachabilityEngine<S>(s -> post(ts, s))
+                    .spillVisitedToDisk(spillDirectory, spillBufferedStates, BitstateStateStore::fingerprint)
+                    .run(ts.getInitialStates());
+            return new StoredStateSet<>(visited, ts.getStates());
         }
-        reachableStates.addAll(ts.getInitialStates());
-        return reachableStates;
+        StateStore<S> visited = newStateStore();
+        if (!visited.isExact()) {
+            throw new IllegalStateException("reach needs an exact state store, got a "
+                    + visited.getClass().getSimpleName() + "; use bitstateReach for a lossy search");
+        }
+        new ReachabilityEngine<S>(s -> post(ts, s))
+                .order(searchOrder)
+                .store(visited)
+                .run(ts.getInitialStates());
+        if (visited instanceof HashStateStore) {
+            return ((HashStateStore<S>) visited).asSet();
+        }
+        // A view rather than a copy, which would undo the store's compression.
+        return new StoredStateSet<>(visited, ts.getStates());
     }
 
-    private <S, A> void reach(S s, TransitionSystem<S, A, ?> ts, Set<S> reachableStates) {
-        for (S state : post(ts, s)) {
-            if (!reachableStates.contains(state)) {
-                reachableStates.add(state);
-                reach(state, ts, reachableStates);
-            }
+    /**
+     * The states of {@link #reach(TransitionSystem)}, found by a
+     * breadth-first search that keeps its visited states and its frontier in
+     * files under {@code directory}, with at most {@code bufferedStates}
+     * unchecked successors in memory; see
+     * {@link ReachabilityEngine#spillToDisk}. {@code encode} must give
+     * distinct states distinct codes, which {@code decode} maps back to the
+     * states. Closing the returned store deletes its file.
+     */
+    public <S, A> DiskStateStore<S> reachOnDisk(TransitionSystem<S, A, ?> ts, Path directory, int bufferedStates,
+                                                ToLongFunction<? super S> encode, LongFunction<? extends S> decode) {
+        return (DiskStateStore<S>) new ReachabilityEngine<S>(s -> post(ts, s))
+                .spillToDisk(directory, bufferedStates, encode, decode)
+                .run(ts.getInitialStates());
+    }
+
+    /**
+     * Same result as {@link #reach(TransitionSystem)}, computed by a
+     * level-synchronous parallel BFS on {@code threads} threads. {@code ts}
+     * must not be modified while the search runs.
+     */
+    public <S, A> Set<S> parallelReach(TransitionSystem<S, A, ?> ts, int threads) {
+        settle(ts);
+        return new ParallelReachabilityEngine<S>(s -> post(ts, s), threads).run(ts.getInitialStates());
+    }
+
+    // Builds ts's lazy indices, if it has any, before it is read from several threads.
+    private static void settle(TransitionSystem<?, ?, ?> ts) {
+        if (ts instanceof IndexedTransitionSystem) {
+            ((IndexedTransitionSystem<?, ?, ?>) ts).settle();
         }
     }
 
+    /**
+     * Bitstate search: explores {@code ts} in the configured search order,
+     * keeping each visited state as {@code hashes} bits of a store of
+     * {@code bytes} bytes and nothing else. Some states may be missed.
+     * For the same mode in
+     * {@link #verifyAnOmegaRegularProperty(TransitionSystem, Automaton)},
+     * select a {@link NestedDepthFirstSearch} over bitstate stores.
+     *
+     * @return The store, with the number of states visited and estimates of
+     * how many were missed.
+     */
+    public <S, A> BitstateStateStore<S> bitstateReach(TransitionSystem<S, A, ?> ts, long bytes, int hashes) {
+        BitstateStateStore<S> visited = new BitstateStateStore<>(bytes, hashes);
+        new ReachabilityEngine<S>(s -> post(ts, s))
+                .order(searchOrder)
+                .store(visited)
+                .run(ts.getInitialStates());
+        return visited;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <S> StateStore<S> newStateStore() {
+        return (StateStore<S>) stateStores.get();
+    }
+
     @Override
     public <S1, S2, A, P> TransitionSystem<Pair<S1, S2>, A, P> interleave(TransitionSystem<S1, A, P> ts1, TransitionSystem<S2, A, P> ts2) {
+        if (reachableInterleaving) {
+            return interleaveReachable(ts1, ts2, Collections.emptySet());
+        }
         TransitionSystem<Pair<S1, S2>, A, P> newTS = createTransitionSystem();
 
         createStates(ts1, ts2, newTS);
@@ -280,62 +498,129 @@ public class FvmFacadeImpl implements FvmFacade {
 
     @Override
     public <S1, S2, A, P> TransitionSystem<Pair<S1, S2>, A, P> interleave(TransitionSystem<S1, A, P> ts1, TransitionSystem<S2, A, P> ts2, Set<A> handShakingActions) {
-        TransitionSystem<Pair<S1, S2>, A, P> newTS = createTransitionSystem();
-
-        createStates(ts1, ts2, newTS);
-        createActions(ts1, ts2, newTS);
-        createAtomicPropositions(ts1, ts2, newTS);
-        createTransitions(ts1, ts2, newTS, handShakingActions);
-        createInitialStates(ts1, ts2, newTS);
-        createLabels(ts1, ts2, newTS);
-        removeUnreachableFromTS(newTS);
+        return interleaveReachable(ts1, ts2, handShakingActions);
+    }
 
+    /**
+     * Composes any number of transition systems in one pass over the reachable
+     * global states. A handshaking action is taken by all systems together,
+     * any other action by one of them, as when chaining
+     * {@link #interleave(TransitionSystem, TransitionSystem, Set)}; states are
+     * the lists of component states, in the order of {@code systems}.
+     */
+    public <S, A, P> TransitionSystem<List<S>, A, P> interleave(List<? extends TransitionSystem<S, A, P>> systems, Set<A> handShakingActions) {
+        TransitionSystem<List<S>, A, P> newTS = createTransitionSystem();
+        new Composition<>(systems, handShakingActions).buildInto(newTS);
         return newTS;
     }
 
-    private <P, S2, S1, A> void removeUnreachableFromTS(TransitionSystem<Pair<S1, S2>, A, P> ts) {
-        Set<Pair<S1, S2>> reachable = reach(ts);
-        Set<Pair<S1, S2>> allStates = ts.getStates();
-        Set<Pair<S1, S2>> statesToRemove = new HashSet<>();
-        Set<Transition<Pair<S1, S2>, A>> transitions = ts.getTransitions();
-        Set<Transition<Pair<S1, S2>, A>> transitionsToRemove = new HashSet<>();
-        for (Pair<S1, S2> state : allStates) {
-            if (!reachable.contains(state)) {
-                for (Transition<Pair<S1, S2>, A> transition : transitions) {
-                    if (transition.getTo().equals(state) || transition.getFrom().equals(state)) {
-                        transitionsToRemove.add(transition);
+    // Builds the part of the composition reachable from the initial pairs, expanding each pair once.
+    private <S1, S2, A, P> TransitionSystem<Pair<S1, S2>, A, P> interleaveReachable(
+            TransitionSystem<S1, A, P> ts1,
+            TransitionSystem<S2, A, P> ts2,
+            Set<A> handShakingActions) {
+        TransitionSystem<Pair<S1, S2>, A, P> newTS = createTransitionSystem();
+        createActions(ts1, ts2, newTS);
+        createAtomicPropositions(ts1, ts2, newTS);
+
+        Map<S1, List<Transition<S1, A>>> outgoing1 = transitionsBySource(ts1);
+        Map<S2, List<Transition<S2, A>>> outgoing2 = transitionsBySource(ts2);
+        Deque<Pair<S1, S2>> frontier = new ArrayDeque<>();
+        for (S1 state1 : ts1.getInitialStates()) {
+            for (S2 state2 : ts2.getInitialStates()) {
+                Pair<S1, S2> state = new Pair<>(state1, state2);
+                addInterleavedState(ts1, ts2, newTS, state, frontier);
+                newTS.setInitial(state, true);
+            }
+        }
+        while (!frontier.isEmpty()) {
+            Pair<S1, S2> state = frontier.poll();
+            List<Transition<S1, A>> transitions1 = outgoing1.getOrDefault(state.first, Collections.emptyList());
+            List<Transition<S2, A>> transitions2 = outgoing2.getOrDefault(state.second, Collections.emptyList());
+            for (Transition<S1, A> transition1 : transitions1) {
+                A action = transition1.getAction();
+                if (!handShakingActions.contains(action)) {
+                    Pair<S1, S2> next = new Pair<>(transition1.getTo(), state.second);
+                    addInterleavedState(ts1, ts2, newTS, next, frontier);
+                    newTS.addTransition(new Transition<>(state, action, next));
+                    continue;
+                }
+                for (Transition<S2, A> transition2 : transitions2) {
+                    if (action.equals(transition2.getAction())) {
+                        Pair<S1, S2> next = new Pair<>(transition1.getTo(), transition2.getTo());
+                        addInterleavedState(ts1, ts2, newTS, next, frontier);
+                        newTS.addTransition(new Transition<>(state, action, next));
                     }
                 }
-                for (Transition<Pair<S1, S2>, A> transition : transitionsToRemove) {
-                    ts.removeTransition(transition);
+            }
+            for (Transition<S2, A> transition2 : transitions2) {
+                A action = transition2.getAction();
+                if (!handShakingActions.contains(action)) {
+                    Pair<S1, S2> next = new Pair<>(state.first, transition2.getTo());
+                    addInterleavedState(ts1, ts2, newTS, next, frontier);
+                    newTS.addTransition(new Transition<>(state, action, next));
                 }
-                ts.getLabelingFunction().remove(state);
-                statesToRemove.add(state);
             }
         }
-        for (Pair<S1, S2> state : statesToRemove) {
-            ts.removeState(state);
+        return newTS;
+    }
+
+    private <S1, S2, A, P> void addInterleavedState(
+            TransitionSystem<S1, A, P> ts1,
+            TransitionSystem<S2, A, P> ts2,
+            TransitionSystem<Pair<S1, S2>, A, P> newTS,
+            Pair<S1, S2> state,
+            Deque<Pair<S1, S2>> frontier) {
+        if (newTS.getStates().contains(state)) {
+            return;
+        }
+        newTS.addState(state);
+        for (P label : ts1.getLabel(state.first)) {
+            newTS.addToLabel(state, label);
+        }
+        for (P label : ts2.getLabel(state.second)) {
+            newTS.addToLabel(state, label);
         }
+        frontier.add(state);
     }
 
-    private <S1, S2, A, P> Set<Pair<S1, S2>> getPairsOfLeft(TransitionSystem<Pair<S1, S2>, A, P> ts, S1 s) {
-        Set<Pair<S1, S2>> pairs = new HashSet<>();
-        for (Pair<S1, S2> state : ts.getStates()) {
-            if (state.first.equals(s)) {
-                pairs.add(state);
-            }
+    private <S, A> Map<S, List<Transition<S, A>>> transitionsBySource(TransitionSystem<S, A, ?> ts) {
+        Map<S, List<Transition<S, A>>> outgoing = new HashMap<>();
+        for (Transition<S, A> transition : ts.getTransitions()) {
+            outgoing.computeIfAbsent(transition.getFrom(), k -> new ArrayList<>()).add(transition);
         }
-        return pairs;
+        return outgoing;
     }
 
-    private <S1, S2, A> Set<Pair<S1, S2>> getPairsOfRight(TransitionSystem<Pair<S1, S2>, A, ?> ts, S2 s) {
-        Set<Pair<S1, S2>> pairs = new HashSet<>();
-        for (Pair<S1, S2> state : ts.getStates()) {
-            if (state.second.equals(s)) {
-                pairs.add(state);
+    private <S, A, P> void removeUnreachable(TransitionSystem<S, A, P> ts) {
+        // Not reach: a state the search missed would be deleted here, so only an exact store will do.
+        StateStore<S> reachable = new HashStateStore<>();
+        new ReachabilityEngine<S>(s -> post(ts, s))
+                .order(searchOrder)
+                .store(reachable)
+                .run(ts.getInitialStates());
+        // A transition leaving a reachable state ends in one, so checking the source is enough.
+        List<Transition<S, A>> transitionsToRemove = new ArrayList<>();
+        for (Transition<S, A> transition : ts.getTransitions()) {
+            if (!reachable.contains(transition.getFrom())) {
+                transitionsToRemove.add(transition);
+            }
+        }
+        for (Transition<S, A> transition : transitionsToRemove) {
+            ts.removeTransition(transition);
+        }
+        List<S> statesToRemove = new ArrayList<>();
+        for (S state : ts.getStates()) {
+            if (!reachable.contains(state)) {
+                statesToRemove.add(state);
             }
         }
-        return pairs;
+        for (S state : statesToRemove) {
+            for (P label : new HashSet<>(ts.getLabel(state))) {
+                ts.removeLabel(state, label);
+            }
+            ts.removeState(state);
+        }
     }
 
     private <S1, S2, A, P> void createLabels(
@@ -402,72 +687,25 @@ public class FvmFacadeImpl implements FvmFacade {
             TransitionSystem<S2, A, P> ts2,
             TransitionSystem<Pair<S1, S2>, A, P> newTS) {
         for (Transition<S1, A> transition : ts1.getTransitions()) {
-            for (Pair<S1, S2> pair1 : getPairsOfLeft(newTS, transition.getFrom())) {
-                for (Pair<S1, S2> pair2 : getPairsOfLeft(newTS, transition.getTo())) {
-                    if (pair1.second.equals(pair2.second)) {
-                        newTS.addTransition(new Transition<>(pair1, transition.getAction(), pair2));
-                    }
-                }
+            for (S2 s2 : ts2.getStates()) {
+                newTS.addTransition(
+                        new Transition<>(
+                                new Pair<>(transition.getFrom(), s2),
+                                transition.getAction(),
+                                new Pair<>(transition.getTo(), s2)
+                        )
+                );
             }
         }
-
         for (Transition<S2, A> transition : ts2.getTransitions()) {
-            for (Pair<S1, S2> pair1 : getPairsOfRight(newTS, transition.getFrom())) {
-                for (Pair<S1, S2> pair2 : getPairsOfRight(newTS, transition.getTo())) {
-                    if (pair1.first.equals(pair2.first)) {
-                        newTS.addTransition(new Transition<>(pair1, transition.getAction(), pair2));
-                    }
-                }
-            }
-        }
-    }
-
-    private <S1, S2, A, P> void createTransitions(
-            TransitionSystem<S1, A, P> ts1,
-            TransitionSystem<S2, A, P> ts2,
-            TransitionSystem<Pair<S1, S2>, A, P> newTS,
-            Set<A> handShakingActions) {
-        for (Transition<S1, A> transition1 : ts1.getTransitions()) {
-            A action1 = transition1.getAction();
-            for (Transition<S2, A> transition2 : ts2.getTransitions()) {
-                A action2 = transition2.getAction();
-                if (action1.equals(action2) && handShakingActions.contains(action1)) {
-                    newTS.addTransition(
-                            new Transition<>(
-                                    new Pair<>(transition1.getFrom(), transition2.getFrom()),
-                                    action1,
-                                    new Pair<>(transition1.getTo(), transition2.getTo())
-                            )
-                    );
-                }
-            }
-        }
-        for (Transition<S1, A> transition1 : ts1.getTransitions()) {
-            A action = transition1.getAction();
-            if (!handShakingActions.contains(action)) {
-                for (S2 s2 : ts2.getStates()) {
-                    newTS.addTransition(
-                            new Transition<>(
-                                    new Pair<>(transition1.getFrom(), s2),
-                                    action,
-                                    new Pair<>(transition1.getTo(), s2)
-                            )
-                    );
-                }
-            }
-        }
-        for (Transition<S2, A> transition2 : ts2.getTransitions()) {
-            A action = transition2.getAction();
-            if (!handShakingActions.contains(action)) {
-                for (S1 s1 : ts1.getStates()) {
-                    newTS.addTransition(
-                            new Transition<>(
-                                    new Pair<>(s1, transition2.getFrom()),
-                                    action,
-                                    new Pair<>(s1, transition2.getTo())
-                            )
-                    );
-                }
+            for (S1 s1 : ts1.getStates()) {
+                newTS.addTransition(
+                        new Transition<>(
+                                new Pair<>(s1, transition.getFrom()),
+                                transition.getAction(),
+                                new Pair<>(s1, transition.getTo())
+                        )
+                );
             }
         }
     }
@@ -479,6 +717,9 @@ public class FvmFacadeImpl implements FvmFacade {
 
     @Override
     public <L1, L2, A> ProgramGraph<Pair<L1, L2>, A> interleave(ProgramGraph<L1, A> pg1, ProgramGraph<L2, A> pg2) {
+        if (reachableInterleaving) {
+            return interleaveReachable(pg1, pg2);
+        }
         ProgramGraph<Pair<L1, L2>, A> newPG = createProgramGraph();
 
         // LOCATIONS
@@ -492,24 +733,7 @@ public class FvmFacadeImpl implements FvmFacade {
             }
         }
 
-        // INITIALIZATION LIST
-        for (List<String> initializations1 : pg1.getInitalizations()) {
-            for (List<String> initializations2 : pg2.getInitalizations()) {
-                ArrayList<String> combinedList = new ArrayList<>(initializations1);
-                combinedList.addAll(initializations2);
-                newPG.addInitalization(combinedList);
-            }
-        }
-        if (pg1.getInitalizations().isEmpty()) {
-            for (List<String> initializations2 : pg2.getInitalizations()) {
-                newPG.addInitalization(initializations2);
-            }
-        }
-        if (pg2.getInitalizations().isEmpty()) {
-            for (List<String> initializations1 : pg1.getInitalizations()) {
-                newPG.addInitalization(initializations1);
-            }
-        }
+        addInitializations(pg1, pg2, newPG);
 
         // TRANSITIONS
         InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
@@ -565,136 +789,195 @@ public class FvmFacadeImpl implements FvmFacade {
         return newPG;
     }
 
-    @Override
-    public TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> transitionSystemFromCircuit(Circuit c) {
-        TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS =
-                this.createTransitionSystem();
-
-        generateStatesFromCircuit(c, newTS);
-        generateActionsFromCircuit(c, newTS);
-        generateInitialStatesFromCircuit(c, newTS);
-        generateTransitionsFromCircuit(c, newTS);
-        generateAtomicPropositionsFromCircuit(c, newTS);
-        generateLabelsFromCircuit(c, newTS);
-        removeUnreachableFromCircuit(c, newTS);
+    // Only locations reachable from the initial pairs are built, each expanded once.
+    private <L1, L2, A> ProgramGraph<Pair<L1, L2>, A> interleaveReachable(ProgramGraph<L1, A> pg1, ProgramGraph<L2, A> pg2) {
+        ProgramGraph<Pair<L1, L2>, A> newPG = createProgramGraph();
+        addInitializations(pg1, pg2, newPG);
 
-        return newTS;
-    }
+        InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
+        Map<A, Boolean> oneSided = new HashMap<>();
+        for (ProgramGraph<?, A> pg : Arrays.asList(pg1, pg2)) {
+            for (PGTransition<?, A> transition : pg.getTransitions()) {
+                oneSided.computeIfAbsent(transition.getAction(), a -> interleavingActDef.isOneSidedAction(a.toString()));
+            }
+        }
+        Map<L1, List<PGTransition<L1, A>>> outgoing1 = transitionsBySource(pg1);
+        Map<L2, List<PGTransition<L2, A>>> outgoing2 = transitionsBySource(pg2);
+        // pg2's one-sided transitions by source location, then by channel and direction.
+        Map<L2, Map<String, List<PGTransition<L2, A>>>> oneSided2 = new HashMap<>();
+        for (PGTransition<L2, A> transition2 : pg2.getTransitions()) {
+            if (oneSided.get(transition2.getAction())) {
+                oneSided2.computeIfAbsent(transition2.getFrom(), k -> new HashMap<>())
+                        .computeIfAbsent(channelKey(transition2.getAction()), k -> new ArrayList<>())
+                        .add(transition2);
+            }
+        }
+        Map<String, Boolean> matching = new HashMap<>();
 
-    private void removeUnreachableFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        Set<Pair<Map<String, Boolean>, Map<String, Boolean>>> reachableStates = reach(newTS);
-        Set<Pair<Map<String, Boolean>, Map<String, Boolean>>> allStates = newTS.getStates();
-        Set<Pair<Map<String, Boolean>, Map<String, Boolean>>> statesToRemove = new HashSet<>();
-        Set<Transition<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>>> transitions =
-                newTS.getTransitions();
-        Set<Transition<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>>> transitionsToRemove =
-                new HashSet<>();
-        for (Pair<Map<String, Boolean>, Map<String, Boolean>> state : allStates) {
-            if (!reachableStates.contains(state)) {
-                for (Transition<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> transition : transitions) {
-                    if (transition.getTo().equals(state) || transition.getFrom().equals(state)) {
-                        transitionsToRemove.add(transition);
+        Deque<Pair<L1, L2>> frontier = new ArrayDeque<>();
+        for (L1 l1 : pg1.getInitialLocations()) {
+            for (L2 l2 : pg2.getInitialLocations()) {
+                Pair<L1, L2> location = new Pair<>(l1, l2);
+                addInterleavedLocation(newPG, location, frontier);
+                newPG.setInitial(location, true);
+            }
+        }
+        while (!frontier.isEmpty()) {
+            Pair<L1, L2> location = frontier.poll();
+            for (PGTransition<L1, A> transition1 : outgoing1.getOrDefault(location.first, Collections.emptyList())) {
+                A action = transition1.getAction();
+                if (!oneSided.get(action)) {
+                    Pair<L1, L2> next = new Pair<>(transition1.getTo(), location.second);
+                    addInterleavedLocation(newPG, next, frontier);
+                    newPG.addTransition(new PGTransition<>(location, transition1.getCondition(), action, next));
+                    continue;
+                }
+                List<PGTransition<L2, A>> candidates = oneSided2
+                        .getOrDefault(location.second, Collections.emptyMap())
+                        .getOrDefault(channelKey(action), Collections.emptyList());
+                for (PGTransition<L2, A> transition2 : candidates) {
+                    String actions = action + "|" + transition2.getAction();
+                    if (matching.computeIfAbsent(actions, interleavingActDef::isMatchingAction)) {
+                        Pair<L1, L2> next = new Pair<>(transition1.getTo(), transition2.getTo());
+                        addInterleavedLocation(newPG, next, frontier);
+                        newPG.addTransition(new PGTransition<>(location, transition1.getCondition(), handshakeAction(actions), next));
                     }
                 }
-                for (Transition<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> transition : transitionsToRemove) {
-                    newTS.removeTransition(transition);
+            }
+            for (PGTransition<L2, A> transition2 : outgoing2.getOrDefault(location.second, Collections.emptyList())) {
+                A action = transition2.getAction();
+                if (!oneSided.get(action)) {
+                    Pair<L1, L2> next = new Pair<>(location.first, transition2.getTo());
+                    addInterleavedLocation(newPG, next, frontier);
+                    newPG.addTransition(new PGTransition<>(location, transition2.getCondition(), action, next));
                 }
-                newTS.getLabelingFunction().remove(state);
-                statesToRemove.add(state);
             }
         }
-        for (Pair<Map<String, Boolean>, Map<String, Boolean>> state : statesToRemove) {
-            newTS.removeState(state);
+        return newPG;
+    }
+
+    private <L, A> void addInterleavedLocation(ProgramGraph<L, A> newPG, L location, Deque<L> frontier) {
+        if (!newPG.getLocations().contains(location)) {
+            newPG.addLocation(location);
+            frontier.add(location);
         }
     }
 
-    private void generateLabelsFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        for (Pair<Map<String, Boolean>, Map<String, Boolean>> state : newTS.getStates()) {
-            Map<String, Boolean> newLabel = new HashMap<>();
-            newLabel.putAll(state.getFirst());
-            newLabel.putAll(state.getSecond());
-            newLabel.putAll(c.computeOutputs(state.getFirst(), state.getSecond()));
-            for (String name : newLabel.keySet()) {
-                if (newLabel.get(name)) {
-                    newTS.addToLabel(state, name);
-                }
-            }
+    // A handshake action without its last character, e.g. "_C?" for "_C?x".
+    private <A> String channelKey(A action) {
+        String text = action.toString();
+        return text.substring(0, text.length() - 1);
+    }
+
+    // A handshake is labeled by its halves' actions joined with "|", whatever A is.
+    @SuppressWarnings("unchecked")
+    private static <A> A handshakeAction(String actions) {
+        return (A) actions;
+    }
+
+    private <L1, L2, A> void addInitializations(ProgramGraph<L1, A> pg1, ProgramGraph<L2, A> pg2, ProgramGraph<Pair<L1, L2>, A> newPG) {
+        for (List<String> initialization : combineInitializations(pg1.getInitalizations(), pg2.getInitalizations())) {
+            newPG.addInitalization(initialization);
         }
     }
 
-    private void generateAtomicPropositionsFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        for (String registerName : c.getRegisterNames()) {
-            newTS.addAtomicProposition(registerName);
+    // Every concatenation of a list from each side; a side without lists leaves the other's as they are.
+    private Set<List<String>> combineInitializations(Set<List<String>> initializations1, Set<List<String>> initializations2) {
+        if (initializations1.isEmpty()) {
+            return initializations2;
         }
-        for (String inputPortName : c.getInputPortNames()) {
-            newTS.addAtomicProposition(inputPortName);
+        if (initializations2.isEmpty()) {
+            return initializations1;
         }
-        for (String outputPortName : c.getOutputPortNames()) {
-            newTS.addAtomicProposition(outputPortName);
+        Set<List<String>> combined = new HashSet<>();
+        for (List<String> initialization1 : initializations1) {
+            for (List<String> initialization2 : initializations2) {
+                List<String> combinedList = new ArrayList<>(initialization1);
+                combinedList.addAll(initialization2);
+                combined.add(combinedList);
+            }
         }
+        return combined;
     }
 
-    private void generateTransitionsFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        ArrayList<Map<String, Boolean>> inputPortsPermutations = new ArrayList<>();
-        generateBooleanPermutations(inputPortsPermutations, c.getInputPortNames());
-        for (Pair<Map<String, Boolean>, Map<String, Boolean>> state : newTS.getStates()) {
-            for (Map<String, Boolean> permutation : inputPortsPermutations) {
-                Pair<Map<String, Boolean>, Map<String, Boolean>> updatedState =
-                        new Pair<>(permutation, c.updateRegisters(state.getFirst(), state.getSecond()));
-                newTS.addTransition(new Transition<>(state, permutation, updatedState));
-            }
-        }
+    /**
+     * The result is always a {@link CompactTransitionSystem}, whatever
+     * {@link #setTransitionSystemRepresentation} selects: its states are
+     * pairs of input and register maps, whose hashes collide in bulk, so it
+     * is keyed on their bits instead.
+     */
+    @Override
+    public TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> transitionSystemFromCircuit(Circuit c) {
+        CircuitEngine engine = new CircuitEngine(c, getCircuitEvaluationCache(c));
+        TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS =
+                new CompactTransitionSystem<>(engine::stateHash);
+        engine.buildInto(newTS);
+        return newTS;
     }
 
-    private void generateInitialStatesFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        ArrayList<Map<String, Boolean>> inputPortsPermutations = new ArrayList<>();
-        Map<String, Boolean> registersFalse = new HashMap<>();
-        generateBooleanPermutations(inputPortsPermutations, c.getInputPortNames());
-        for (String registerName : c.getRegisterNames()) {
-            registersFalse.put(registerName, false);
-        }
-        for (Map<String, Boolean> inputPortsMap : inputPortsPermutations) {
-            newTS.setInitial(new Pair<>(inputPortsMap, registersFalse), true);
-        }
+    /**
+     * @return The states of {@link #transitionSystemFromCircuit} as BDDs, for
+     * counting the reachable ones and checking invariants over the names of
+     * {@code c}'s inputs, registers and outputs. The BDDs are built by
+     * evaluating {@code c} at every valuation of its inputs and registers,
+     * which only suits small circuits; for larger ones, describe them with
+     * {@link CircuitFunctions} and use
+     * {@link #symbolicReachability(CircuitFunctions)}.
+     *
+     * @throws IllegalArgumentException If {@code c} has more than 24 inputs
+     * and registers together.
+     */
+    public SymbolicReachability<String> symbolicReachability(Circuit c) {
+        return SymbolicReachability.of(c);
     }
 
-    private void generateActionsFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        ArrayList<Map<String, Boolean>> inputPortsPermutations = new ArrayList<>();
-        generateBooleanPermutations(inputPortsPermutations, c.getInputPortNames());
-        newTS.addAllActions(inputPortsPermutations);
+    /**
+     * @return The states of a circuit given by its update and output
+     * functions as BDDs, as {@link #symbolicReachability(Circuit)} returns
+     * them, without sampling.
+     */
+    public SymbolicReachability<String> symbolicReachability(CircuitFunctions functions) {
+        return SymbolicReachability.of(functions);
     }
 
-    private void generateStatesFromCircuit(Circuit c, TransitionSystem<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>, Object> newTS) {
-        ArrayList<Map<String, Boolean>> registersPermutations = new ArrayList<>();
-        ArrayList<Map<String, Boolean>> inputPortsPermutations = new ArrayList<>();
-        generateBooleanPermutations(registersPermutations, c.getRegisterNames());
-        generateBooleanPermutations(inputPortsPermutations, c.getInputPortNames());
-        for (Map<String, Boolean> registersMap : registersPermutations) {
-            for (Map<String, Boolean> inputPortsMap : inputPortsPermutations) {
-                newTS.addState(new Pair<>(inputPortsMap, registersMap));
-            }
-        }
+    /**
+     * @return The states of {@code ts} as BDDs, for counting the reachable
+     * ones and checking invariants over its atomic propositions. The
+     * encoding goes state by state and transition by transition, so it
+     * takes as long as building {@code ts} did.
+     */
+    public <S, A, P> SymbolicReachability<P> symbolicReachability(TransitionSystem<S, A, P> ts) {
+        return SymbolicReachability.of(ts);
     }
 
-    private void generateBooleanPermutations(
-            ArrayList<Map<String, Boolean>> permutations,
-            Set<String> names) {
-        String[] namesArray = names.toArray(new String[0]);
-        for (int i = 0; i < Math.pow(2, namesArray.length); i++) {
-            Map<String, Boolean> registersMap = new HashMap<>();
-            int num = i;
-            int index = 0;
-            for (int j = 0; j < namesArray.length; j++) {
-                if (num % 2 == 1) {
-                    registersMap.put(namesArray[index], true);
-                } else {
-                    registersMap.put(namesArray[index], false);
-                }
-                index++;
-                num /= 2;
-            }
-            permutations.add(registersMap);
-        }
+    /**
+     * Bounded model checking: looks for inputs that make {@code signal}, an
+     * input, register or output of {@code c}, true within {@code bound}
+     * steps of the initial registers. The SAT encoding is built from
+     * {@code c}'s functions, which are sampled at every valuation of its
+     * inputs and registers; for larger circuits, describe them with
+     * {@link CircuitFunctions} and use
+     * {@link #boundedModelCheck(CircuitFunctions, String, int)}.
+     *
+     * @return A shortest such path of {@link #transitionSystemFromCircuit},
+     * or {@code null} if there is none within the bound.
+     * @throws IllegalArgumentException If {@code c} has more than 24 inputs
+     * and registers together.
+     */
+    public AlternatingSequence<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> boundedModelCheck(
+            Circuit c, String signal, int bound) {
+        return boundedModelCheck(CircuitFunctions.of(c, new BddManager()), signal, bound);
+    }
+
+    /**
+     * Bounded model checking of a circuit given by its update and output
+     * functions, which are unrolled as they are, without sampling.
+     *
+     * @see #boundedModelCheck(Circuit, String, int)
+     */
+    public AlternatingSequence<Pair<Map<String, Boolean>, Map<String, Boolean>>, Map<String, Boolean>> boundedModelCheck(
+            CircuitFunctions functions, String signal, int bound) {
+        return new BoundedModelChecker(functions).check(signal, bound);
     }
 
     @Override
@@ -704,227 +987,167 @@ public class FvmFacadeImpl implements FvmFacade {
             Set<ConditionDef> conditionDefs) {
         TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS =
                 this.createTransitionSystem();
+        actionsFromProgramGraph(pg, newTS);
 
-        List<Map<String, Object>> initialEvals = getInitialEvals(pg, actionDefs);
-        Map<L, Set<Map<String, Object>>> locationToEvalsMap = new HashMap<>();
-        for (Map<String, Object> initialEval : initialEvals) {
-            Map<L, Set<Map<String, Object>>> evals = statesFromProgramGraph(pg, actionDefs, conditionDefs, newTS, initialEval);
-            for (L location : evals.keySet()) {
-                locationToEvalsMap.putIfAbsent(location, new HashSet<>());
-                locationToEvalsMap.get(location).addAll(evals.get(location));
+        // Each TS transition is added when its source is expanded, so every
+        // reachable (location, evaluation) pair is expanded exactly once.
+        ProgramGraphExpansion<L, A> expansion = new ProgramGraphExpansion<>(pg, actionDefs, conditionDefs);
+        Deque<Pair<L, Map<String, Object>>> frontier = new ArrayDeque<>();
+        for (Pair<L, Map<String, Object>> state : expansion.initialStates) {
+            if (addProgramGraphState(newTS, state)) {
+                frontier.add(state);
+            }
+            newTS.setInitial(state, true);
+        }
+        while (!frontier.isEmpty()) {
+            Pair<L, Map<String, Object>> state = frontier.poll();
+            for (Transition<Pair<L, Map<String, Object>>, A> transition : expansion.transitionsFrom(state)) {
+                if (addProgramGraphState(newTS, transition.getTo())) {
+                    frontier.add(transition.getTo());
+                }
+                newTS.addTransition(transition);
             }
         }
-        actionsFromProgramGraph(pg, newTS);
-        atomicPropositionsFromProgramGraph(pg, newTS, locationToEvalsMap);
-        labelsFromProgramGraph(newTS);
-        transitionsFromProgramGraph(pg, actionDefs, conditionDefs, newTS);
 
         return newTS;
     }
 
-    private <L, A> void transitionsFromProgramGraph(
-            ProgramGraph<L, A> pg, Set<ActionDef> actionDefs,
+    /**
+     * Same result as {@link #transitionSystemFromProgramGraph(ProgramGraph, Set, Set)},
+     * with the evaluations explored by a level-synchronous parallel BFS on
+     * {@code threads} threads, starting from all initial evaluations at
+     * once. The definitions are then called from several threads and must
+     * allow it; the parser-based ones do.
+     */
+    public <L, A> TransitionSystem<Pair<L, Map<String, Object>>, A, String> transitionSystemFromProgramGraph(
+            ProgramGraph<L, A> pg,
+            Set<ActionDef> actionDefs,
             Set<ConditionDef> conditionDefs,
-            TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS) {
-        InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
-        for (PGTransition<L, A> pgTransition : pg.getTransitions()) {
-            L locationFrom = pgTransition.getFrom();
-            String cond = pgTransition.getCondition();
-            A action = pgTransition.getAction();
-            L locationTo = pgTransition.getTo();
-            for (Pair<L, Map<String, Object>> stateFrom : newTS.getStates()) {
-                if (stateFrom.getFirst().equals(locationFrom)) {
-                    for (Pair<L, Map<String, Object>> stateTo : newTS.getStates()) {
-                        if (stateTo.getFirst().equals(locationTo)) {
-                            Map<String, Object> evalFrom = stateFrom.getSecond();
-                            Map<String, Object> evalTo = stateTo.getSecond();
-                            if (ConditionDef.evaluate(conditionDefs, evalFrom, cond)) {
-                                if (interleavingActDef.isMatchingAction(action)) {
-                                    if (ActionDef.effect(actionDefs, evalFrom, action.toString()).equals(evalTo)) {
-                                        newTS.addTransition(new Transition<>(
-                                                stateFrom,
-                                                action,
-                                                stateTo
-                                        ));
-                                    } else {
-                                        if (evalFrom.equals(evalTo)) {
-                                            newTS.addTransition(new Transition<>(
-                                                    stateFrom,
-                                                    action,
-                                                    stateTo
-                                            ));
-                                        }
-                                    }
-                                } else {
-                                    if (ActionDef.isMatchingAction(actionDefs, action.toString())) {
-                                        if (ActionDef.effect(actionDefs, evalFrom, action.toString()).equals(evalTo)) {
-                                            newTS.addTransition(new Transition<>(
-                                                    stateFrom,
-                                                    action,
-                                                    stateTo
-                                            ));
-                                        }
-                                    } else {
-                                        if (evalFrom.equals(evalTo)) {
-                                            newTS.addTransition(new Transition<>(
-                                                    stateFrom,
-                                                    action,
-                                                    stateTo
-                                            ));
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+            int threads) {
+        ProgramGraphExpansion<L, A> expansion = new ProgramGraphExpansion<>(pg, actionDefs, conditionDefs);
+        Map<Pair<L, Map<String, Object>>, List<Transition<Pair<L, Map<String, Object>>, A>>> transitions =
+                new ConcurrentHashMap<>();
+        Set<Pair<L, Map<String, Object>>> reachable = new ParallelReachabilityEngine<Pair<L, Map<String, Object>>>(state -> {
+            List<Transition<Pair<L, Map<String, Object>>, A>> out = expansion.transitionsFrom(state);
+            transitions.put(state, out);
+            List<Pair<L, Map<String, Object>>> successors = new ArrayList<>(out.size());
+            for (Transition<Pair<L, Map<String, Object>>, A> transition : out) {
+                successors.add(transition.getTo());
+            }
+            return successors;
+        }, threads).run(expansion.initialStates);
+
+        TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS = this.createTransitionSystem();
+        actionsFromProgramGraph(pg, newTS);
+        for (Pair<L, Map<String, Object>> state : reachable) {
+            addProgramGraphState(newTS, state);
+        }
+        for (Pair<L, Map<String, Object>> state : expansion.initialStates) {
+            newTS.setInitial(state, true);
+        }
+        for (List<Transition<Pair<L, Map<String, Object>>, A>> out : transitions.values()) {
+            for (Transition<Pair<L, Map<String, Object>>, A> transition : out) {
+                newTS.addTransition(transition);
             }
         }
+        return newTS;
     }
 
-    private <L, A> void labelsFromProgramGraph(TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS) {
-        for (Pair<L, Map<String, Object>> state : newTS.getStates()) {
-            Map<String, Object> eval = state.second;
-            for (String key : eval.keySet()) {
-                newTS.addToLabel(state, key + " = " + eval.get(key));
-            }
-            if (state.getFirst() instanceof List) {
-                for (Object o : (List)state.getFirst()) {
-                    newTS.addToLabel(state, o.toString());
+    /**
+     * The initial states of a program graph's transition system and the
+     * transitions out of any of its states. Evaluations are interned, so
+     * states share equal ones. Safe to use from several threads when the
+     * definitions are.
+     */
+    private final class ProgramGraphExpansion<L, A> {
+        private final Map<L, List<PGTransition<L, A>>> outgoing;
+        private final CompiledDefinitions.Evaluator evaluator;
+        private final Valuation.Pool valuations = new Valuation.Pool();
+        private final List<Pair<L, Map<String, Object>>> initialStates = new ArrayList<>();
+
+        ProgramGraphExpansion(ProgramGraph<L, A> pg, Set<ActionDef> actionDefs, Set<ConditionDef> conditionDefs) {
+            outgoing = transitionsBySource(pg);
+            evaluator = compiledDefinitions
+                    .computeIfAbsent(pg, k -> new CompiledDefinitions())
+                    .evaluator(actionDefs, conditionDefs);
+            for (Map<String, Object> initialEval : getInitialEvals(pg.getInitalizations(), actionDefs)) {
+                for (L location : pg.getInitialLocations()) {
+                    initialStates.add(new Pair<>(location, valuations.intern(initialEval)));
                 }
             }
-            else {
-                newTS.addToLabel(state, state.getFirst().toString());
-            }
         }
-    }
 
-    private <L, A> void atomicPropositionsFromProgramGraph(
-            ProgramGraph<L, A> pg,
-            TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS,
-            Map<L, Set<Map<String, Object>>> locationToEvalsMap) {
-        Set<String> atomicPropositions = new HashSet<>();
-        for (L location : pg.getLocations()) {
-            if (locationToEvalsMap.get(location) != null) {
-                if (location instanceof List) {
-                    atomicPropositions.addAll((List)location);
+        List<Transition<Pair<L, Map<String, Object>>, A>> transitionsFrom(Pair<L, Map<String, Object>> state) {
+            List<Transition<Pair<L, Map<String, Object>>, A>> transitions = new ArrayList<>();
+            for (PGTransition<L, A> pgTransition : outgoing.getOrDefault(state.first, Collections.emptyList())) {
+                if (!evaluator.evaluate(state.second, pgTransition.getCondition())) {
+                    continue;
                 }
-                else {
-                    newTS.addAtomicProposition(location.toString());
+                A action = pgTransition.getAction();
+                Map<String, Object> newEval = evaluator.effect(state.second, action);
+                if (newEval == null) {
+                    // The action is not enabled here, e.g. a read from an empty channel.
+                    continue;
                 }
+                transitions.add(new Transition<>(state, action, new Pair<>(pgTransition.getTo(), valuations.intern(newEval))));
             }
-        }
-        for (Set<Map<String, Object>> evaluation : locationToEvalsMap.values()) {
-            for (Map<String, Object> map : evaluation) {
-                for (String key : map.keySet())
-                atomicPropositions.add(key + " = " + map.get(key));
-            }
-        }
-        for (String ap : atomicPropositions) {
-            newTS.addAtomicProposition(ap);
+            return transitions;
         }
     }
 
-    private <L, A> void actionsFromProgramGraph(
-            ProgramGraph<L, A> pg,
-            TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS) {
-        Set<A> tsActions = new HashSet<>();
+    private <L, A> Map<L, List<PGTransition<L, A>>> transitionsBySource(ProgramGraph<L, A> pg) {
+        Map<L, List<PGTransition<L, A>>> outgoing = new HashMap<>();
         for (PGTransition<L, A> pgTransition : pg.getTransitions()) {
-            tsActions.add(pgTransition.getAction());
+            outgoing.computeIfAbsent(pgTransition.getFrom(), k -> new ArrayList<>()).add(pgTransition);
         }
-        newTS.addAllActions(tsActions);
+        return outgoing;
     }
 
-    private <L, A> Map<L, Set<Map<String, Object>>> statesFromProgramGraph(
-            ProgramGraph<L, A> pg,
-            Set<ActionDef> actionDefs,
-            Set<ConditionDef> conditionDefs,
+    // Adds state and its label, registering the label's propositions. Returns false if state was already there.
+    private <L, A> boolean addProgramGraphState(
             TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS,
-            Map<String, Object> initialEval) {
-        Map<L, Set<Map<String, Object>>> locationToEvalsMap =
-                generateEvalsToAllLocations(pg, actionDefs, conditionDefs, initialEval);
-        for (L location : pg.getLocations()) {
-            if (locationToEvalsMap.get(location) != null) {
-                for (Map<String, Object> eval : locationToEvalsMap.get(location)) {
-                    Pair<L, Map<String, Object>> state = new Pair<>(location, eval);
-                    newTS.addState(state);
-                    if (pg.getInitialLocations().contains(location) && eval.equals(initialEval)) {
-                        newTS.setInitial(state, true);
-                    }
-                }
+            Pair<L, Map<String, Object>> state) {
+        if (newTS.getStates().contains(state)) {
+            return false;
+        }
+        newTS.addState(state);
+        for (String ap : programGraphLabel(state)) {
+            newTS.addAtomicProposition(ap);
+            newTS.addToLabel(state, ap);
+        }
+        return true;
+    }
+
+    // "name = value" for each variable, then the location, or each of its elements if it is a List.
+    private <L> Set<String> programGraphLabel(Pair<L, Map<String, Object>> state) {
+        Set<String> label = new HashSet<>();
+        Map<String, Object> eval = state.second;
+        for (String key : eval.keySet()) {
+            label.add(key + " = " + eval.get(key));
+        }
+        if (state.getFirst() instanceof List) {
+            for (Object o : (List)state.getFirst()) {
+                label.add(o.toString());
             }
         }
-        return locationToEvalsMap;
+        else {
+            label.add(state.getFirst().toString());
+        }
+        return label;
     }
 
-    private <L, A> Map<L, Set<Map<String, Object>>> generateEvalsToAllLocations(
+    private <L, A> void actionsFromProgramGraph(
             ProgramGraph<L, A> pg,
-            Set<ActionDef> actionDefs,
-            Set<ConditionDef> conditionDefs,
-            Map<String, Object> initialEval) {
-        Map<L, Set<Map<String, Object>>> locationToEvalsMap = new HashMap<>();
-        Set<PGTransition<L, A>> pgTransitions = pg.getTransitions();
-        Set<L> pgInitialLocations = pg.getInitialLocations();
-        for (L initialLocation : pgInitialLocations) {
-            generateEvalsToAllLocations(
-                    locationToEvalsMap,
-                    actionDefs,
-                    conditionDefs,
-                    pgTransitions,
-                    initialLocation,
-                    initialEval);
-        }
-        return locationToEvalsMap;
-    }
-
-    private <L, A> void generateEvalsToAllLocations(
-            Map<L, Set<Map<String, Object>>> locationToEvalsMap,
-            Set<ActionDef> actionDefs,
-            Set<ConditionDef> conditionDefs,
-            Set<PGTransition<L, A>> pgTransitions,
-            L location,
-            Map<String, Object> eval) {
-        InterleavingActDef interleavingActDef = new ParserBasedInterleavingActDef();
-        locationToEvalsMap.computeIfAbsent(location, k -> new HashSet<>());
-        locationToEvalsMap.get(location).add(eval);
-        for (PGTransition<L, A> pgTransition : pgTransitions) {
-            L from = pgTransition.getFrom();
-            if (from.equals(location)) {
-                String cond = pgTransition.getCondition();
-                if (ConditionDef.evaluate(conditionDefs, eval, cond)) {
-                    A action = pgTransition.getAction();
-                    Map<String, Object> newEval = eval;
-                    if (interleavingActDef.isMatchingAction(action)) {
-                        newEval = interleavingActDef.effect(eval, action);
-                    }
-                    else if (ActionDef.isMatchingAction(actionDefs, action)) {
-                        newEval = ActionDef.effect(actionDefs, eval, action);
-                    }
-                    if (newEval != null) {
-                        L to = pgTransition.getTo();
-                        locationToEvalsMap.computeIfAbsent(to, k -> new HashSet<>());
-                        if (locationToEvalsMap.get(to).add(newEval)) {
-                            generateEvalsToAllLocations(
-                                    locationToEvalsMap,
-                                    actionDefs,
-                                    conditionDefs,
-                                    pgTransitions,
-                                    to,
-                                    newEval);
-
-                        }
-                    }
-                    else {
-                        newEval = eval;
-                    }
-                }
-            }
+            TransitionSystem<Pair<L, Map<String, Object>>, A, String> newTS) {
+        Set<A> tsActions = new HashSet<>();
+        for (PGTransition<L, A> pgTransition : pg.getTransitions()) {
+            tsActions.add(pgTransition.getAction());
         }
+        newTS.addAllActions(tsActions);
     }
 
-    private <L, A> List<Map<String, Object>> getInitialEvals(ProgramGraph<L, A> pg, Set<ActionDef> actionDefs) {
+    private List<Map<String, Object>> getInitialEvals(Set<List<String>> initializationsSet, Set<ActionDef> actionDefs) {
         List<Map<String, Object>> initialEvals = new ArrayList<>();
-        Set<List<String>> initializationsSet = pg.getInitalizations();
         if (initializationsSet.isEmpty()) {
             initialEvals.add(new HashMap<>());
         }
@@ -942,460 +1165,89 @@ public class FvmFacadeImpl implements FvmFacade {
 
     @Override
     public <L, A> TransitionSystem<Pair<List<L>, Map<String, Object>>, A, String> transitionSystemFromChannelSystem(ChannelSystem<L, A> cs) {
-        List<ProgramGraph<L,A>> pgs = cs.getProgramGraphs();
-        ProgramGraph<List<L>,A> resultPG = transposePG(pgs.get(0));
-        for (int i=1; i<pgs.size(); i++) {
-            ProgramGraph<Pair<List<L>, L>, A> product = interleave(resultPG, pgs.get(i));
-            resultPG = transpose(product);
+        ChannelSystemEngine<L, A> engine = channelSystemEngine(cs);
+        TransitionSystem<Pair<List<L>, Map<String, Object>>, A, String> newTS = createTransitionSystem();
+        newTS.addAllActions(engine.actions());
+        Deque<Pair<List<L>, Map<String, Object>>> frontier = new ArrayDeque<>();
+        for (Pair<List<L>, Map<String, Object>> state : engine.initialStates()) {
+            if (addProgramGraphState(newTS, state)) {
+                frontier.add(state);
+            }
+            newTS.setInitial(state, true);
+        }
+        while (!frontier.isEmpty()) {
+            Pair<List<L>, Map<String, Object>> state = frontier.poll();
+            engine.forEachSuccessor(state, (action, next) -> {
+                if (addProgramGraphState(newTS, next)) {
+                    frontier.add(next);
+                }
+                newTS.addTransition(new Transition<>(state, action, next));
+            });
         }
-
-        Set<ActionDef> actionDefs = new HashSet<>();
-        Set<ConditionDef> conditionDefs = new HashSet<>();
-
-        actionDefs.add(new ParserBasedActDef());
-        //actionDefs.add(new ParserBasedInterleavingActDef());
-
-        conditionDefs.add(new ParserBasedCondDef());
-
-        TransitionSystem<Pair<List<L>, Map<String, Object>>, A, String> resultTS = transitionSystemFromProgramGraph(resultPG, actionDefs, conditionDefs);
-        return resultTS;
+        return newTS;
     }
 
-    private <L, A> ProgramGraph<List<L>, A> transposePG(ProgramGraph<L, A> pg) {
-        ProgramGraph<List<L>, A> newPG = createProgramGraph();
-
-        for (L loc : pg.getLocations()) {
-            List<L> newLoc = new ArrayList<>();
-            newLoc.add(loc);
-            newPG.addLocation(newLoc);
-            if (pg.getInitialLocations().contains(loc)) {
-                newPG.setInitial(newLoc, true);
-            }
-        }
-
-        for (PGTransition<L,A> transition : pg.getTransitions()) {
-            List<L> newFrom = new ArrayList<>();
-            newFrom.add(transition.getFrom());
-            List<L> newTo = new ArrayList<>();
-            newTo.add(transition.getTo());
-            newPG.addTransition(
-                    new PGTransition<>(
-                            newFrom,
-                            transition.getCondition(),
-                            transition.getAction(),
-                            newTo));
-        }
-
-        for (List<String> initialization : pg.getInitalizations()) {
-            newPG.addInitalization(initialization);
-        }
-
-        return newPG;
+    /**
+     * Checks a channel system against an automaton of its bad behaviors,
+     * generating the system's states only as the search reaches them.
+     */
+    public <L, A, Saut> VerificationResult<Pair<List<L>, Map<String, Object>>> verifyAnOmegaRegularProperty(ChannelSystem<L, A> cs, Automaton<Saut, String> aut) {
+        ChannelSystemEngine<L, A> engine = channelSystemEngine(cs);
+        OnTheFlyProduct<Pair<List<L>, Map<String, Object>>, A, String, Saut> prod =
+                new OnTheFlyProduct<>(engine.initialStates(), engine::successors, this::programGraphLabel, aut);
+        return verificationResultOf(emptinessCheck.findAcceptingCycle(prod));
     }
 
-    private <L, A> ProgramGraph<List<L>, A> transpose(ProgramGraph<Pair<List<L>, L>, A> pg) {
-        ProgramGraph<List<L>, A> newPG = createProgramGraph();
-
-        for (Pair<List<L>,L> loc : pg.getLocations()) {
-            List<L> newLoc = new ArrayList<>();
-            newLoc.addAll(loc.first);
-            newLoc.add(loc.second);
-            newPG.addLocation(newLoc);
-            if (pg.getInitialLocations().contains(loc)) {
-                newPG.setInitial(newLoc, true);
-            }
-        }
-
-        for (PGTransition<Pair<List<L>,L>,A> transition : pg.getTransitions()) {
-            List<L> newFrom = new ArrayList<>();
-            newFrom.addAll(transition.getFrom().first);
-            newFrom.add(transition.getFrom().second);
-            List<L> newTo = new ArrayList<>();
-            newTo.addAll(transition.getTo().first);
-            newTo.add(transition.getTo().second);
-            newPG.addTransition(
-                    new PGTransition<>(
-                            newFrom,
-                            transition.getCondition(),
-                            transition.getAction(),
-                            newTo));
+    private <L, A> ChannelSystemEngine<L, A> channelSystemEngine(ChannelSystem<L, A> cs) {
+        Set<ActionDef> actionDefs = Collections.singleton(new ParserBasedActDef());
+        Set<ConditionDef> conditionDefs = Collections.singleton(new ParserBasedCondDef());
+        Set<List<String>> initializations = Collections.emptySet();
+        for (ProgramGraph<L, A> pg : cs.getProgramGraphs()) {
+            initializations = combineInitializations(initializations, pg.getInitalizations());
         }
-
-        for (List<String> initialization : pg.getInitalizations()) {
-            newPG.addInitalization(initialization);
-        }
-
-        return newPG;
+        return new ChannelSystemEngine<>(cs, getInitialEvals(initializations, actionDefs),
+                new CompiledDefinitions().evaluator(actionDefs, conditionDefs));
     }
 
     @Override
     public ProgramGraph<String, String> programGraphFromNanoPromela(String filename) throws Exception {
-        ProgramGraph<String, String> ansPG = new ProgramGraphImpl<>();
-        NanoPromelaParser.StmtContext root = NanoPromelaFileReader.pareseNanoPromelaFile(filename);
-        String rootTXT = root.getText();
-
-        ansPG.addLocation("");
-        ansPG.addLocation(rootTXT);
-        ansPG.setInitial(rootTXT, true);
-        PGFromNP(ansPG, root, rootTXT, "", "", "");
-
-        return ansPG;
+        String source = new String(Files.readAllBytes(Paths.get(filename)), Charset.defaultCharset());
+        NanoPromelaParser.StmtContext root = nanoPromelaCache.parse(source);
+        return new NanoPromelaGraphBuilder(root).build(createProgramGraph(), NanoPromelaLocation::renderWithSuffixes);
     }
 
     @Override
     public ProgramGraph<String, String> programGraphFromNanoPromelaString(String nanopromela) throws Exception {
-        ProgramGraph<String, String> ansPG = new ProgramGraphImpl<>();
-        NanoPromelaParser.StmtContext root = NanoPromelaFileReader.pareseNanoPromelaString(nanopromela);
-        String rootTXT = root.getText();
-
-        ansPG.addLocation("");
-        ansPG.addLocation(rootTXT);
-        ansPG.setInitial(rootTXT, true);
-        PGFromNP(ansPG, root, rootTXT, "", "", "");
-
-        return ansPG;
+        NanoPromelaParser.StmtContext root = nanoPromelaCache.parse(nanopromela);
+        return new NanoPromelaGraphBuilder(root).build(createProgramGraph(), NanoPromelaLocation::renderWithSuffixes);
     }
 
     @Override
     public ProgramGraph<String, String> programGraphFromNanoPromela(InputStream inputStream) throws Exception {
-        ProgramGraph<String, String> ansPG = new ProgramGraphImpl<>();
-        NanoPromelaParser.StmtContext root = NanoPromelaFileReader.parseNanoPromelaStream(inputStream);
-        String rootTXT = root.getText();
-
-        ansPG.addLocation("");
-        ansPG.addLocation(rootTXT);
-        ansPG.setInitial(rootTXT, true);
-        PGFromNP(ansPG, root, rootTXT, "", "", "");
-
-        return ansPG;
-    }
-
-    private void PGFromNP(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np){
-        int childCount = myRoot.getChildCount();
-        String child;
-
-        if(myRoot instanceof NanoPromelaParser.IfstmtContext)
-            processIf(ansPG, myRoot, fromNode, toNode, cond, post_np);
-        else if(myRoot instanceof NanoPromelaParser.DostmtContext)
-            processDo(ansPG, myRoot, fromNode, toNode, cond, post_np);
-        else if(!(myRoot instanceof NanoPromelaParser.StmtContext))
-            processOtherCase(ansPG, myRoot, fromNode, toNode, cond, post_np);
-        else if(childCount > 1){
-            child = myRoot.getChild(1).getText();
-            if(child.equals(";"))
-                processStmt(ansPG, myRoot, fromNode, toNode, cond, post_np);
-        }
-        else
-            PGFromNP(ansPG, myRoot.getChild(0), fromNode, toNode, cond, post_np);
-    }
-
-    private void processIf(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np){
-        int rootChildNum = myRoot.getChildCount() - 1;
-        String ansCond, bracketsCond, ifCond;
-        ParseTree child;
-
-        for(int i = 1; i < rootChildNum; i++){
-            child = myRoot.getChild(i).getChild(3);
-            bracketsCond = "(" + cond + ")";
-            ifCond = "(" + myRoot.getChild(i).getChild(1).getText() + ")";
-
-            if(bracketsCond.equals("()"))
-                ansCond = ifCond;
-            else if(ifCond.equals("()"))
-                ansCond = bracketsCond;
-            else
-                ansCond = bracketsCond + " && " + ifCond;
-
-            PGFromNP(ansPG, child, fromNode, toNode, ansCond, post_np);
-        }
-    }
-
-    private <L, A> void processDo(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np){
-        int rootChildNum = myRoot.getChildCount() - 1;
-        String ansCond, fromTransAns, rootTXT = myRoot.getText(), from_trans3 = toNode + post_np, consitionTransAns, doConds = "", switchedCond, finishDoCond = "";
-
-        for(int i = 1; i < rootChildNum; i++){
-            DoHelper(ansPG, myRoot, fromNode, toNode, cond, post_np, i);
-            ansCond = myRoot.getChild(i).getChild(1).getText();
-            switchedCond = switchCondition(ansCond);
-            finishDoCond = finishDoCond + switchedCond + " && ";
-            doConds = doConds + "(" + ansCond + ") || ";
-        }
-        doConds = doConds.substring(0, doConds.length() - 4);
-        finishDoCond = finishDoCond.substring(0, finishDoCond.length() - 4);
-
-        if(rootTXT.equals("") || rootTXT.equals("()")) fromTransAns = from_trans3;
-        else if(from_trans3.equals("") || from_trans3.equals("()")) fromTransAns = rootTXT;
-        else fromTransAns = rootTXT + ";" + from_trans3;
-
-        if(cond.equals("") || cond.equals("()")) consitionTransAns = finishDoCond;
-        else if(finishDoCond.equals("")) consitionTransAns = cond;
-        else consitionTransAns = cond + " && (!(" + doConds + "))";
-
-        PGTransition<L, A> trans_pg = new PGTransition<>((L)fromTransAns, finishDoCond, (A) "", (L)(toNode + post_np));
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg.getFrom());
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg.getTo());
-        ((ProgramGraph<L, A>) ansPG).addTransition(trans_pg);
-
-        PGTransition<L, A> trans_pg1 = new PGTransition<>((L)fromNode, consitionTransAns, (A) "", (L)(toNode + post_np));
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg1.getFrom());
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg1.getTo());
-        ((ProgramGraph<L, A>) ansPG).addTransition(trans_pg1);
-    }
-
-    private String switchCondition(String cond){
-        StringBuilder SB = new StringBuilder();
-
-        for(int i = 0; i < cond.length(); i++){
-            if(cond.charAt(i) == '>' && cond.charAt(i + 1) == '='){
-                SB.append('<');
-                i++;
-            }
-            else if(cond.charAt(i) == '<' && cond.charAt(i + 1) == '='){
-                SB.append('>');
-                i++;
-            }
-            else if(cond.charAt(i) == '>')
-                SB.append("<=");
-            else if(cond.charAt(i) == '<')
-                SB.append(">=");
-            else if(cond.charAt(i) == '=' && cond.charAt(i + 1) == '='){
-                SB.append("!=");
-                i++;
-            }
-            else if(cond.charAt(i) == 't' && cond.charAt(i + 1) == 'r' && cond.charAt(i + 2) == 'u' && cond.charAt(i + 3) == 'e'){
-                SB.append("!true");
-                i += 3;
-            }
-            else SB.append(cond.charAt(i));
-        }
-        return SB.toString();
-    }
-
-    private void DoHelper(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np, int i){
-        String ansCond = myRoot.getChild(i).getChild(1).getText();
-        ParseTree child = myRoot.getChild(i).getChild(3);
-        String rootTXT = myRoot.getText(), ansPost, bracketsCond, cond3, ansCondUpdate, ansFrom, ansFromFinal;
-
-        if(rootTXT.equals("") || rootTXT.equals("()")) ansPost = post_np;
-        else if(post_np.equals("") || post_np.equals("()")) ansPost = rootTXT;
-        else ansPost = rootTXT + ";" + post_np;
-
-        bracketsCond = "(" + cond + ")";
-        cond3 = "(" + ansCond + ")";
-        if(bracketsCond.equals("()")) ansCondUpdate = cond3;
-        else if(cond3.equals("()")) ansCondUpdate = bracketsCond;
-        else ansCondUpdate = cond + " && (" + cond3 + ")";
-
-        if(rootTXT.equals("") || rootTXT.equals("()")) ansFrom = toNode;
-        else if(toNode.equals("") || toNode.equals("()")) ansFrom = rootTXT;
-        else ansFrom = rootTXT + ";" + toNode;
-
-        if(ansFrom.equals("") || ansFrom.equals("()")) ansFromFinal = post_np;
-        else if(post_np.equals("") || post_np.equals("()")) ansFromFinal = ansFrom;
-        else ansFromFinal = ansFrom + ";" + post_np;
-
-        PGFromNP(ansPG, child, fromNode, toNode, ansCondUpdate, ansPost);
-        PGFromNP(ansPG, child, ansFromFinal, toNode, cond3, ansPost);
-    }
-
-    private <L, A> void processOtherCase(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np) {
-        String to_ans;
-
-        if(toNode.equals("") || toNode.equals("()")) to_ans = post_np;
-        else if(post_np.equals("") || post_np.equals("()")) to_ans = toNode;
-        else to_ans = toNode + ";" + post_np;
-
-        PGTransition<L, A> trans_pg = new PGTransition<>((L)fromNode, cond, (A)myRoot.getText(), (L)to_ans);
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg.getFrom());
-        ((ProgramGraph<L, A>) ansPG).addLocation(trans_pg.getTo());
-        ((ProgramGraph<L, A>) ansPG).addTransition(trans_pg);
-    }
-
-    private void processStmt(ProgramGraph<String, String> ansPG, ParseTree myRoot, String fromNode, String toNode, String cond, String post_np){
-        ParseTree child0 = myRoot.getChild(0), child2 = myRoot.getChild(2);
-        String child2TXT = child2.getText(), ansPost;
-
-        if(child2TXT.equals("") || child2TXT.equals("()")) ansPost = post_np;
-        else if(post_np.equals("") || post_np.equals("()")) ansPost = child2TXT;
-        else ansPost = child2TXT + ";" + post_np;
-
-        PGFromNP(ansPG, child0, fromNode, toNode, cond, ansPost);
-        PGFromNP(ansPG, child2, ansPost, toNode, "", post_np);
-    }
-
-
-
-    private ProgramGraph<String, String> getPGfromStmt(NanoPromelaParser.StmtContext root) {
-        ProgramGraph<String, String> newPG = new ProgramGraphImpl<>();
-        Set<String> locs = sub(newPG, root);
-        //LOCATIONS
-        for (String loc : locs) {
-            newPG.addLocation(loc);
-        }
-        newPG.setInitial(root.getText(), true);
-
-        //delete unreachable locs.
-        Set<String> reachables = pgReach(newPG);
-        Set<String> nonreachables = new HashSet<>();
-        for (String locs2 : newPG.getLocations()) {
-            if (!reachables.contains(locs2)) {
-                nonreachables.add(locs2);
-            }
-        }
-
-        for (String locs3 : nonreachables) {
-            newPG.removeLocation(locs3);
-        }
-        Set<PGTransition<String, String>> toRemove = new HashSet<>();
-        for (PGTransition<String, String> trans : newPG.getTransitions()) {
-            if (!newPG.getLocations().contains(trans.getTo())) {
-                toRemove.add(trans);
-            }
-            if (!newPG.getLocations().contains(trans.getFrom())) {
-                toRemove.add(trans);
-            }
-        }
-        for (PGTransition<String, String> trans : toRemove) {
-            newPG.removeTransition(trans);
+        StringBuilder source = new StringBuilder();
+        Reader reader = new InputStreamReader(inputStream, Charset.defaultCharset());
+        char[] buffer = new char[8192];
+        for (int n = reader.read(buffer); n != -1; n = reader.read(buffer)) {
+            source.append(buffer, 0, n);
         }
-
-        return newPG;
+        NanoPromelaParser.StmtContext root = nanoPromelaCache.parse(source.toString());
+        return new NanoPromelaGraphBuilder(root).build(createProgramGraph(), NanoPromelaLocation::renderWithSuffixes);
     }
 
-    private Set<String> pgReach(ProgramGraph<String, String> pg) {
-        Set<String> reachableStates = new HashSet<>();
-        for (String initialState : pg.getInitialLocations()) {
-            reachableStates.add(initialState);
-            pgReach(initialState, pg, reachableStates);
-        }
-        reachableStates.addAll(pg.getInitialLocations());
-        return reachableStates;
-    }
-
-    private void pgReach(String init, ProgramGraph<String, String> pg, Set<String> reachableStates) {
-        for (PGTransition<String, String> transition : pg.getTransitions()) {
-            if (transition.getFrom().equals(init)) {
-                if (!reachableStates.contains(transition.getTo())) {
-                    reachableStates.add(transition.getTo());
-                    pgReach(transition.getTo(), pg, reachableStates);
-                }
-            }
-        }
-    }
-
-    private Set<String> sub(ProgramGraph<String, String> newPG, NanoPromelaParser.StmtContext root) {
-        Set<String> locs = new HashSet<>();
-        if (root.assstmt() != null || root.chanreadstmt() != null || root.chanwritestmt() != null || root.atomicstmt() != null || root.skipstmt() != null) {
-            locs.add(root.getText());
-            locs.add("");
-            newPG.addTransition(new PGTransition<>(root.getText(), "", root.getText(), ""));
-        } else if (root.ifstmt() != null) {
-            locs.add(root.ifstmt().getText());
-            locs.add("");
-            for (NanoPromelaParser.OptionContext op : root.ifstmt().option()) {
-                Set<String> ifSub = sub(newPG, op.stmt());
-                locs.addAll(ifSub);
-                Set<PGTransition<String, String>> toAdd = new HashSet<>();
-                for (PGTransition<String, String> trans : newPG.getTransitions()) {
-                    if (trans.getFrom().equals(op.stmt().getText())) {
-                        String newCond = trans.getCondition().equals("") ||
-                                trans.getCondition().equals("true") ?
-                                '(' + op.boolexpr().getText() + ')' :
-                                '(' + op.boolexpr().getText() + ") && (" + trans.getCondition() + ')';
-                        PGTransition<String, String> newTrans = new PGTransition<>(root.ifstmt().getText(), newCond, trans.getAction(), trans.getTo());
-                        toAdd.add(newTrans);
-                    }
-                }
-                for (PGTransition<String, String> trans : toAdd) {
-                    newPG.addTransition(trans);
-                }
-            }
-        } else if (root.dostmt() != null) {
-            locs.add(root.dostmt().getText());
-            locs.add("");
-            StringBuilder notCond = new StringBuilder();
-            notCond.append("!(");
-            List<NanoPromelaParser.OptionContext> optionList = root.dostmt().option();
-            for (NanoPromelaParser.OptionContext op : optionList) {
-                Set<String> newLocs = sub(newPG, op.stmt());
-                newLocs.remove("");
-                for (String dosub : newLocs) {
-                    String doSubAdd = dosub + ';' + root.dostmt().getText();
-                    locs.add(doSubAdd);
-                    Set<PGTransition<String, String>> toAdd = new HashSet<>();
-
-                    if (op.equals(optionList.get(optionList.size() - 1))) {
-                        notCond.append('(').append(op.boolexpr().getText()).append("))");
-                    } else {
-                        notCond.append('(').append(op.boolexpr().getText()).append(")||");
-                    }
-
-                    for (PGTransition<String, String> trans : newPG.getTransitions()) {
-                        String to, cond;
-                        if (dosub.equals(trans.getFrom())) {
-                            if (trans.getTo().equals("")) {
-                                to = root.dostmt().getText();
-                            } else {
-                                to = trans.getTo() + ';' + root.dostmt().getText();
-                            }
-                            toAdd.add(new PGTransition<>(dosub + ';' + root.dostmt().getText(), trans.getCondition(), trans.getAction(), to));
-                        }
-
-                        if (op.stmt().getText().equals(trans.getFrom())) {
-                            if (trans.getTo().equals("")) {
-                                to = root.dostmt().getText();
-                            } else {
-                                to = trans.getTo() + ';' + root.dostmt().getText();
-                            }
-                            if (trans.getCondition().equals("") || trans.getCondition().contains("true")) {
-                                cond = '(' + op.boolexpr().getText() + ')';
-                            } else {
-                                cond = '(' + op.boolexpr().getText() + ") && (" + trans.getCondition() + ')';
-                            }
-                            toAdd.add(new PGTransition<>(root.dostmt().getText(), cond, trans.getAction(), to));
-                        }
-                    }
-                    for (PGTransition<String, String> trans : toAdd) {
-                        newPG.addTransition(trans);
-                    }
-                }
-            }
-            newPG.addTransition(new PGTransition<>(root.dostmt().getText(), notCond.toString(), "", ""));
-        } else {
-            locs.add(root.getText());
-            Set<String> newLocs = sub(newPG, root.stmt(1));
-            locs.addAll(newLocs);
-
-            Set<String> subs0 = sub(newPG, root.stmt(0));
-            subs0.remove("");
-            for (String s : subs0) {
-                String locToAdd = s + ';' + root.stmt(1).getText();
-                locs.add(locToAdd);
-                Set<PGTransition<String, String>> toAdd = new HashSet<>();
-                for(PGTransition<String, String> trans : newPG.getTransitions()) {
-                    String to;
-                    if (s.equals(trans.getFrom())) {
-                        if(trans.getTo().equals("")){
-                            to = root.stmt(1).getText();
-                        }
-                        else{
-                            to = trans.getTo() + ';' + root.stmt(1).getText();
-                        }
-                        toAdd.add(new PGTransition<>(locToAdd, trans.getCondition(), trans.getAction(), to));
-                    }
-                }
-                for (PGTransition<String, String> trans : toAdd) {
-                    newPG.addTransition(trans);
-                }
-            }
-        }
-        return locs;
+    /**
+     * The graph of {@link #programGraphFromNanoPromelaString}, with
+     * {@link NanoPromelaLocation}s in place of the location texts: locations
+     * hash and compare in constant time, and their texts are only rendered on
+     * demand.
+     */
+    public ProgramGraph<NanoPromelaLocation, String> compactProgramGraphFromNanoPromelaString(String nanopromela) throws Exception {
+        NanoPromelaParser.StmtContext root = nanoPromelaCache.parse(nanopromela);
+        return new NanoPromelaGraphBuilder(root).build(createProgramGraph(), location -> location);
     }
 
     @Override
     public <Sts, Saut, A, P> TransitionSystem<Pair<Sts, Saut>, A, Saut> product(TransitionSystem<Sts, A, P> ts, Automaton<Saut, P> aut) {
-        TransitionSystem<Pair<Sts,Saut>, A, Saut> ans = new TransitionSystemImpl<>();
+        TransitionSystem<Pair<Sts,Saut>, A, Saut> ans = createTransitionSystem();
 
         //S
         for(Sts sts : ts.getStates()){
@@ -1453,33 +1305,8 @@ public class FvmFacadeImpl implements FvmFacade {
 
 
         //remove unreachable states
-        Set<Pair<Sts, Saut>> reachableStates = reach(ans);
-        Set<Pair<Sts, Saut>> toRemove = new HashSet<>();
-        for(Pair<Sts, Saut> pair : ans.getStates()){
-            if(!reachableStates.contains(pair)){
-                toRemove.add(pair);
-            }
-        }
+        removeUnreachable(ans);
 
-        for(Pair<Sts, Saut> pair : toRemove){
-            Set<Transition<Pair<Sts, Saut>, A>> transitionsToRemove = new HashSet<>();
-            for (Transition<Pair<Sts, Saut>, A> transition : ans.getTransitions()) {
-                if (transition.getFrom().equals(pair) || transition.getTo().equals(pair)) {
-                    transitionsToRemove.add(transition);
-                }
-            }
-            for(Transition<Pair<Sts,Saut>, A> transition : transitionsToRemove){
-                ans.removeTransition(transition);
-            }
-            Set<Saut> labels = ans.getLabel(pair);
-            for(Saut label : labels){
-                ans.removeLabel(pair, label);
-            }
-            if(ans.getInitialStates().contains(pair)){
-                ans.setInitial(pair, false);
-            }
-            ans.removeState(pair);
-        }
         Set<Saut> apToRemove = new HashSet<>();
         for(Saut saut : ans.getAtomicPropositions()){
             Map<Pair<Sts, Saut>, Set<Saut>> labels = ans.getLabelingFunction();
@@ -1502,151 +1329,48 @@ public class FvmFacadeImpl implements FvmFacade {
 
     @Override
     public <S, A, P, Saut> VerificationResult<S> verifyAnOmegaRegularProperty(TransitionSystem<S, A, P> ts, Automaton<Saut, P> aut) {
-        TransitionSystem<Pair<S, Saut>, A, Saut> prod = product(ts, aut);
-        Set<Saut> acceptingStates = aut.getAcceptingStates();
-        Set<Pair<S, Saut>> r = new HashSet<>();
-        Set<Pair<S, Saut>> rNot = new HashSet<>();
-        Stack<Pair<S, Saut>> u = new Stack<>();
-        Set<Pair<S, Saut>> t;
-        Stack<Pair<S, Saut>> v;
-
-        for (Pair<S, Saut> s : prod.getInitialStates()) { // TODO: Check if required I/R instead of I
-            visit(prod, acceptingStates, r, rNot, u, s);
-        }
-        for (Pair<S, Saut> s : rNot) {
-            t = new HashSet<>();
-            v = new Stack<>();
-            List<S> cycle = cycleCheck(prod, t, v, s);
-            if (!cycle.isEmpty()) {
-                VerificationFailed<S> vr = new VerificationFailed<>();
-                List<S> prefix = new LinkedList<>();
-                for (Pair<S, Saut> i : prod.getInitialStates()) { // TODO: Check if required I/R instead of I
-                    prefix = getPrefix(prod, i, s);
-                    if (!prefix.isEmpty()) {
-                        break;
-                    }
-                }
-                vr.setCycle(cycle);
-                vr.setPrefix(prefix);
-                return vr;
-            }
-        }
-        return new VerificationSucceeded<>();
-    }
-
-    private <S, A, Saut> List<S> getPrefix(
-            TransitionSystem<Pair<S, Saut>, A, Saut> prod,
-            Pair<S, Saut> i,
-            Pair<S, Saut> s) {
-        Set<Pair<S, Saut>> r = new HashSet<>();
-        Stack<Pair<S, Saut>> u = new Stack<>();
-        List<S> prefix = new LinkedList<>();
-        u.push(i);
-        r.add(i);
-        do {
-            Pair<S, Saut> st = u.peek();
-            if (r.containsAll(post(prod, st))) {
-                u.pop();
-                if (st.equals(s)) {
-                    //Found S
-                    Stack<Pair<S, Saut>> reversed = reverse(u);
-                    while (!reversed.empty()) {
-                        prefix.add(reversed.pop().first);
-                    }
-                    return prefix;
-                }
-            }
-            else {
-                Pair<S, Saut> stt = minus(post(prod, st), r);
-                u.push(stt);
-                r.add(stt);
-            }
-        } while (!u.empty());
-        return prefix;
-    }
-
-    private <T> Stack<T> reverse(Stack<T> s) {
-        Stack<T> reversed = new Stack<>();
-        while (!s.empty()) {
-            reversed.push(s.pop());
-        }
-        return reversed;
-    }
-
-    private <S, A, Saut> void visit(
-            TransitionSystem<Pair<S, Saut>, A, Saut> prod,
-            Set<Saut> acceptingStates,
-            Set<Pair<S, Saut>> r,
-            Set<Pair<S, Saut>> rNot,
-            Stack<Pair<S, Saut>> u,
-            Pair<S, Saut> s) {
-        u.push(s);
-        r.add(s);
-        do {
-            Pair<S, Saut> st = u.peek();
-            if (r.containsAll(post(prod, st))) {
-                u.pop();
-                if (acceptingStates.contains(st.getSecond())) {
-                    rNot.add(st);
-                }
-            }
-            else {
-                Pair<S, Saut> stt = minus(post(prod, st), r);
-                u.push(stt);
-                r.add(stt);
-            }
-        } while (!u.empty());
-    }
-
-    private <S, A, Saut> List<S> cycleCheck(
-            TransitionSystem<Pair<S, Saut>, A, Saut> prod,
-            Set<Pair<S, Saut>> t,
-            Stack<Pair<S, Saut>> v,
-            Pair<S, Saut> s) {
-        List<S> cycle = new ArrayList<>();
-        boolean cycleFound = false;
-        v.push(s);
-        t.add(s);
-        do {
-            Pair<S, Saut> st = v.peek();
-            if (post(prod, st).contains(s)) {
-                Stack<Pair<S, Saut>> reversed = reverse(v);
-                while (!reversed.empty()) {
-                    cycle.add(reversed.pop().first);
-                }
-                cycleFound = true;
-            }
-            else {
-                if (minus(post(prod, st), t) != null) {
-                    Pair<S, Saut> stt = minus(post(prod, st), t);
-                    v.push(stt);
-                    t.add(stt);
-                }
-                else {
-                    v.pop();
-                }
-            }
+        BuchiGraph<Pair<S, Saut>> prod;
+        if (onTheFlyProduct) {
+            // The emptiness check may read ts from several threads.
+            settle(ts);
+            prod = new OnTheFlyProduct<>(ts, aut, s -> post(ts, s));
+        } else {
+            TransitionSystem<Pair<S, Saut>, A, Saut> prodTS = product(ts, aut);
+            Set<Saut> acceptingStates = aut.getAcceptingStates();
+            prod = new TransitionSystemBuchiGraph<>(prodTS, s -> post(prodTS, s),
+                    s -> acceptingStates.contains(s.getSecond()));
         }
-        while (!v.empty() && !cycleFound);
-        return cycle;
+        return verificationResultOf(emptinessCheck.findAcceptingCycle(prod));
     }
 
     /**
-     * Assumes set1 contains exactly 1 element more than s2. Returns it.
-     * @param set1
-     * @param set2
-     * @param <S>
-     * @param <A>
-     * @param <Saut>
-     * @return
+     * Checks {@code ts} against a generalized Buchi automaton of its bad
+     * behaviors, without degeneralizing it: a run of the product is accepting
+     * if it visits every color infinitely often.
+     *
+     * @throws IllegalArgumentException If {@code aut} has more than 64 colors.
      */
-    private <S, A, Saut> Pair<S, Saut> minus(Set<Pair<S, Saut>> set1, Set<Pair<S, Saut>> set2) {
-        for (Pair<S, Saut> s : set1) {
-            if (!set2.contains(s)) {
-                return s;
-            }
+    public <S, A, P, Saut> VerificationResult<S> verifyAnOmegaRegularProperty(TransitionSystem<S, A, P> ts, MultiColorAutomaton<Saut, P> aut) {
+        GeneralizedBuchiGraph<Pair<S, Saut>> prod = new GeneralizedOnTheFlyProduct<>(ts, aut, s -> post(ts, s));
+        return verificationResultOf(new SccEmptinessCheck().findAcceptingCycle(prod));
+    }
+
+    private <S, Saut> VerificationResult<S> verificationResultOf(Lasso<Pair<S, Saut>> lasso) {
+        if (lasso == null) {
+            return new VerificationSucceeded<>();
+        }
+        VerificationFailed<S> vr = new VerificationFailed<>();
+        vr.setPrefix(tsStatesOf(lasso.getPrefix()));
+        vr.setCycle(tsStatesOf(lasso.getCycle()));
+        return vr;
+    }
+
+    private <S, Saut> List<S> tsStatesOf(List<Pair<S, Saut>> productStates) {
+        List<S> states = new ArrayList<>(productStates.size());
+        for (Pair<S, Saut> state : productStates) {
+            states.add(state.first);
         }
-        return null;
+        return states;
     }
 
     @Override
@@ -0,0 +1,22 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.Set;
+
+/**
+ * A state graph with generalized Buchi acceptance: a path is accepting if it
+ * visits each of the acceptance sets infinitely often. Set membership is
+ * reported as a bit mask, so there can be at most 64 sets.
+ */
+public interface GeneralizedBuchiGraph<N> {
+
+    Set<N> initialStates();
+
+    Set<N> successors(N state);
+
+    int acceptanceSetCount();
+
+    /**
+     * @return A mask with bit {@code i} set iff {@code state} is in acceptance set {@code i}.
+     */
+    long acceptanceMask(N state);
+}
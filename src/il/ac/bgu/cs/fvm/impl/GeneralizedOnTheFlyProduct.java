@@ -0,0 +1,65 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.automata.MultiColorAutomaton;
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The product of a transition system and a generalized Buchi automaton,
+ * explored on the fly like {@link OnTheFlyProduct}, with one acceptance set
+ * per color of the automaton.
+ */
+public class GeneralizedOnTheFlyProduct<S, A, P, Saut> implements GeneralizedBuchiGraph<Pair<S, Saut>> {
+
+    private final OnTheFlyProduct<S, A, P, Saut> graph;
+    private final List<Set<Saut>> acceptanceSets = new ArrayList<>();
+
+    /**
+     * @param tsPost The single-step successor relation of {@code ts}.
+     * @throws IllegalArgumentException If {@code aut} has more than 64 colors.
+     */
+    public GeneralizedOnTheFlyProduct(TransitionSystem<S, A, P> ts, MultiColorAutomaton<Saut, P> aut,
+                                      Function<S, Set<S>> tsPost) {
+        if (aut.getColors().size() > 64) {
+            throw new IllegalArgumentException("Automaton has " + aut.getColors().size()
+                    + " colors, at most 64 are supported");
+        }
+        this.graph = new OnTheFlyProduct<>(ts.getInitialStates(), tsPost, ts::getLabel, aut.getTransitions(),
+                aut.getInitialStates(), Collections.emptySet());
+        for (int color : aut.getColors()) {
+            acceptanceSets.add(aut.getAcceptingStates(color));
+        }
+    }
+
+    @Override
+    public Set<Pair<S, Saut>> initialStates() {
+        return graph.initialStates();
+    }
+
+    @Override
+    public Set<Pair<S, Saut>> successors(Pair<S, Saut> state) {
+        return graph.successors(state);
+    }
+
+    @Override
+    public int acceptanceSetCount() {
+        return acceptanceSets.size();
+    }
+
+    @Override
+    public long acceptanceMask(Pair<S, Saut> state) {
+        long mask = 0;
+        for (int i = 0; i < acceptanceSets.size(); i++) {
+            if (acceptanceSets.get(i).contains(state.getSecond())) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+}
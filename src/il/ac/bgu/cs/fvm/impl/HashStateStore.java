@@ -0,0 +1,31 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The exact, default {@link StateStore}: a plain hash set of the states.
+ */
+public class HashStateStore<S> implements StateStore<S> {
+
+    private final Set<S> states = new HashSet<>();
+
+    @Override
+    public boolean add(S state) {
+        return states.add(state);
+    }
+
+    @Override
+    public boolean contains(S state) {
+        return states.contains(state);
+    }
+
+    @Override
+    public long size() {
+        return states.size();
+    }
+
+    public Set<S> asSet() {
+        return states;
+    }
+}
@@ -0,0 +1,29 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+
+import java.util.Set;
+
+/**
+ * A transition system that can answer single-step successor and predecessor
+ * queries without scanning its whole transition relation. The facade's
+ * {@code post}/{@code pre} overloads use these when available.
+ */
+public interface IndexedTransitionSystem<S, A, P> extends TransitionSystem<S, A, P> {
+
+    Set<S> post(S s);
+
+    Set<S> post(S s, A a);
+
+    Set<S> pre(S s);
+
+    Set<S> pre(S s, A a);
+
+    /**
+     * Builds any index that is otherwise built lazily by the first query, so
+     * that queries made afterwards, until the next modification, only read
+     * and may come from several threads at once.
+     */
+    default void settle() {
+    }
+}
@@ -0,0 +1,206 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+// Maps values to dense int ids. Removed ids are left as holes and never reused.
+// The index is an open-addressing table of ids, so a value costs its slot in
+// values, its cached hash and about two table entries, with no boxing.
+// Values are hashed by hashCode unless the interner is given a hash function,
+// for values whose hashCode is poorly spread; it must agree with equals.
+class Interner<T> {
+
+    private static final int EMPTY = -1;
+    private static final int REMOVED = -2;
+
+    private Object[] values = new Object[16];
+    private int[] hashes = new int[16];
+    private int capacity;
+    private int size;
+    // Ids by hash, EMPTY or REMOVED; used counts the slots that are not EMPTY.
+    private int[] table = emptyTable(32);
+    private int used;
+    private final ToIntFunction<? super T> hashCode;
+
+    Interner() {
+        this(Object::hashCode);
+    }
+
+    Interner(ToIntFunction<? super T> hashCode) {
+        this.hashCode = hashCode;
+    }
+
+    private static int[] emptyTable(int length) {
+        int[] table = new int[length];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private int hash(T value) {
+        int h = hashCode.applyAsInt(value) * 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    int intern(T value) {
+        int h = hash(value);
+        int slot = find(value, h);
+        if (table[slot] >= 0) {
+            return table[slot];
+        }
+        if (capacity == values.length) {
+            values = Arrays.copyOf(values, capacity * 2);
+            hashes = Arrays.copyOf(hashes, capacity * 2);
+        }
+        int id = capacity++;
+        values[id] = value;
+        hashes[id] = h;
+        size++;
+        if (table[slot] == EMPTY) {
+            used++;
+        }
+        table[slot] = id;
+        if (used * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    // The slot holding value, or else the first free slot on its probe sequence.
+    private int find(Object value, int h) {
+        int mask = table.length - 1;
+        int free = -1;
+        for (int slot = h & mask; ; slot = slot + 1 & mask) {
+            int id = table[slot];
+            if (id == EMPTY) {
+                return free >= 0 ? free : slot;
+            }
+            if (id == REMOVED) {
+                if (free < 0) {
+                    free = slot;
+                }
+            } else if (hashes[id] == h && values[id].equals(value)) {
+                return slot;
+            }
+        }
+    }
+
+    private void rehash() {
+        int length = table.length;
+        while (size * 4 > length) {
+            length *= 2;
+        }
+        table = emptyTable(length);
+        used = size;
+        int mask = length - 1;
+        for (int id = 0; id < capacity; id++) {
+            if (values[id] != null) {
+                int slot = hashes[id] & mask;
+                while (table[slot] != EMPTY) {
+                    slot = slot + 1 & mask;
+                }
+                table[slot] = id;
+            }
+        }
+    }
+
+    // Returns -1 for values that were never interned, or were removed.
+    int idOf(T value) {
+        if (value == null) {
+            return -1;
+        }
+        int slot = find(value, hash(value));
+        return table[slot] >= 0 ? table[slot] : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int id) {
+        if (id < 0 || id >= capacity) {
+            throw new IndexOutOfBoundsException("Id " + id + ", capacity " + capacity);
+        }
+        return (T) values[id];
+    }
+
+    boolean contains(T value) {
+        return idOf(value) >= 0;
+    }
+
+    boolean isLive(int id) {
+        return values[id] != null;
+    }
+
+    void remove(T value) {
+        if (value == null) {
+            return;
+        }
+        int slot = find(value, hash(value));
+        int id = table[slot];
+        if (id >= 0) {
+            table[slot] = REMOVED;
+            values[id] = null;
+            size--;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // One past the largest id handed out so far.
+    int capacity() {
+        return capacity;
+    }
+
+    // A read-only live view of the interned values.
+    Set<T> view() {
+        return Collections.unmodifiableSet(new AbstractSet<T>() {
+            @Override
+            public Iterator<T> iterator() {
+                return new Iterator<T>() {
+                    private int next = advance(0);
+
+                    private int advance(int from) {
+                        while (from < capacity && values[from] == null) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < capacity;
+                    }
+
+                    @Override
+                    public T next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        T value = get(next);
+                        next = advance(next + 1);
+                        return value;
+                    }
+                };
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean contains(Object o) {
+                try {
+                    return idOf((T) o) >= 0;
+                } catch (ClassCastException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        });
+    }
+}
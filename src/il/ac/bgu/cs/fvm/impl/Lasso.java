@@ -0,0 +1,27 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.List;
+
+/**
+ * A witness for a non-empty Buchi graph: a path from an initial state to
+ * {@code cycle.get(0)}, followed by a cycle through an accepting state.
+ * Neither list repeats its first state at its end.
+ */
+public class Lasso<N> {
+
+    private final List<N> prefix;
+    private final List<N> cycle;
+
+    public Lasso(List<N> prefix, List<N> cycle) {
+        this.prefix = prefix;
+        this.cycle = cycle;
+    }
+
+    public List<N> getPrefix() {
+        return prefix;
+    }
+
+    public List<N> getCycle() {
+        return cycle;
+    }
+}
@@ -0,0 +1,117 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A temporary file of longs, appended to and read through small heap buffers.
+// Nothing is memory-mapped, so the file can be deleted as soon as it is closed,
+// and it only ever holds the longs written to it.
+final class LongFile {
+
+    private static final int BUFFER_LONGS = 1 << 13;
+    // Reads that do not continue the previous one are likely probes of a search, and read this little.
+    private static final int PROBE_LONGS = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private long size;
+    // Appended longs from index size - writes.position() / 8 on, not yet in the file.
+    private final ByteBuffer writes = ByteBuffer.allocate(BUFFER_LONGS * Long.BYTES);
+    private final ByteBuffer reads = ByteBuffer.allocate(BUFFER_LONGS * Long.BYTES);
+    private long readStart;
+    private int readCount;
+
+    private LongFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static LongFile create(Path directory) {
+        try {
+            return new LongFile(Files.createTempFile(directory, "states", ".longs"));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    void append(long value) {
+        if (!writes.hasRemaining()) {
+            flush();
+        }
+        writes.putLong(value);
+        size++;
+    }
+
+    private long written() {
+        return size - writes.position() / Long.BYTES;
+    }
+
+    private void flush() {
+        long position = written() * Long.BYTES;
+        writes.flip();
+        try {
+            while (writes.hasRemaining()) {
+                position += channel.write(writes, position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writes.clear();
+    }
+
+    long get(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        long written = written();
+        if (index >= written) {
+            return writes.getLong((int) (index - written) * Long.BYTES);
+        }
+        if (index < readStart || index >= readStart + readCount) {
+            fill(index, index == readStart + readCount ? BUFFER_LONGS : PROBE_LONGS, written);
+        }
+        return reads.getLong((int) (index - readStart) * Long.BYTES);
+    }
+
+    // Reads up to count longs from index on, but none past the written ones.
+    private void fill(long index, int count, long written) {
+        reads.clear();
+        reads.limit((int) Math.min(count, written - index) * Long.BYTES);
+        long position = index * Long.BYTES;
+        try {
+            while (reads.hasRemaining()) {
+                int read = channel.read(reads, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + path);
+                }
+                position += read;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        readStart = index;
+        readCount = reads.limit() / Long.BYTES;
+    }
+
+    // Deletes the file; the longs are gone. Deleting again does nothing.
+    void delete() {
+        size = 0;
+        writes.clear();
+        readCount = 0;
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaParser;
+import il.ac.bgu.cs.fvm.programgraph.PGTransition;
+import il.ac.bgu.cs.fvm.programgraph.ProgramGraph;
+import org.antlr.v4.runtime.RuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Builds the program graph of a NanoPromela statement in one pass over its
+ * syntax tree. Syntax nodes are hash-consed to ids, so equal subtrees share
+ * an id, and a location is a chain of statement ids (see
+ * {@link NanoPromelaLocation}); sequences are flattened, which makes two
+ * locations equal exactly when their texts are. Texts are rendered on
+ * demand.
+ * <p>
+ * Walking a statement is split into its entry transitions, which leave the
+ * location it is entered from, and the rest, which do not depend on it. A
+ * loop body is entered from two places but walked once.
+ */
+class NanoPromelaGraphBuilder {
+
+    private final Interner<Object> keys = new Interner<>();
+    private final Map<ParseTree, Integer> ids = new IdentityHashMap<>();
+    private final List<int[]> children = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private final Map<Long, NanoPromelaLocation> locations = new HashMap<>();
+    private final NanoPromelaLocation end = new NanoPromelaLocation(0, -1, null, this);
+    private final NanoPromelaParser.StmtContext root;
+
+    private ProgramGraph<Object, String> pg;
+    private Function<NanoPromelaLocation, ?> render;
+
+    NanoPromelaGraphBuilder(NanoPromelaParser.StmtContext root) {
+        this.root = root;
+        intern(root);
+    }
+
+    /**
+     * Adds the graph of the statement to {@code pg}, rendering each location
+     * with {@code render}.
+     */
+    @SuppressWarnings("unchecked")
+    <L> ProgramGraph<L, String> build(ProgramGraph<L, String> pg, Function<NanoPromelaLocation, L> render) {
+        this.pg = (ProgramGraph<Object, String>) pg;
+        this.render = render;
+        NanoPromelaLocation start = sequence(root, end)[0];
+        pg.addLocation(render.apply(end));
+        pg.addLocation(render.apply(start));
+        pg.setInitial(render.apply(start), true);
+        enter(root, start, "", end);
+        walk(root, end);
+        return pg;
+    }
+
+    // Ids every node under node, children first, without recursing down long sequences.
+    private void intern(ParseTree node) {
+        Deque<ParseTree> stack = new ArrayDeque<>();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            ParseTree top = stack.peek();
+            if (ids.containsKey(top)) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (int i = 0; i < top.getChildCount(); i++) {
+                if (!ids.containsKey(top.getChild(i))) {
+                    stack.push(top.getChild(i));
+                    ready = false;
+                }
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+            Object key;
+            int[] childIds = new int[top.getChildCount()];
+            if (top instanceof RuleContext) {
+                List<Integer> ruleKey = new ArrayList<>();
+                ruleKey.add(((RuleContext) top).getRuleIndex());
+                for (int i = 0; i < childIds.length; i++) {
+                    childIds[i] = ids.get(top.getChild(i));
+                    ruleKey.add(childIds[i]);
+                }
+                key = ruleKey;
+            } else {
+                key = top.getText();
+            }
+            int id = keys.intern(key);
+            if (id == children.size()) {
+                children.add(childIds);
+                texts.add(top instanceof RuleContext ? null : top.getText());
+            }
+            ids.put(top, id);
+        }
+    }
+
+    // The text of syntax node id, as ParseTree.getText would give it.
+    String text(int id) {
+        if (texts.get(id) != null) {
+            return texts.get(id);
+        }
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            int top = stack.peek();
+            if (texts.get(top) != null) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (int child : children.get(top)) {
+                if (texts.get(child) == null) {
+                    stack.push(child);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                StringBuilder sb = new StringBuilder();
+                for (int child : children.get(top)) {
+                    sb.append(texts.get(child));
+                }
+                texts.set(top, sb.toString());
+                stack.pop();
+            }
+        }
+        return texts.get(id);
+    }
+
+    private String text(ParseTree node) {
+        return text(ids.get(node));
+    }
+
+    private NanoPromelaLocation location(ParseTree statement, NanoPromelaLocation next) {
+        int id = ids.get(statement);
+        return locations.computeIfAbsent((long) id << 32 | next.getId(),
+                k -> new NanoPromelaLocation(locations.size() + 1, id, next, this));
+    }
+
+    // The statements of a sequence in order, each unwrapped from its stmt node.
+    private static List<ParseTree> parts(ParseTree statement) {
+        List<ParseTree> parts = new ArrayList<>();
+        Deque<ParseTree> stack = new ArrayDeque<>();
+        stack.push(statement);
+        while (!stack.isEmpty()) {
+            ParseTree node = stack.pop();
+            while (node instanceof NanoPromelaParser.StmtContext && node.getChildCount() == 1) {
+                node = node.getChild(0);
+            }
+            if (node instanceof NanoPromelaParser.StmtContext) {
+                stack.push(node.getChild(2));
+                stack.push(node.getChild(0));
+            } else {
+                parts.add(node);
+            }
+        }
+        return parts;
+    }
+
+    // locations[i] is the location before part i of statement; locations[parts] is next.
+    private NanoPromelaLocation[] sequence(ParseTree statement, NanoPromelaLocation next) {
+        List<ParseTree> parts = parts(statement);
+        NanoPromelaLocation[] result = new NanoPromelaLocation[parts.size() + 1];
+        result[parts.size()] = next;
+        for (int i = parts.size() - 1; i >= 0; i--) {
+            result[i] = location(parts.get(i), result[i + 1]);
+        }
+        return result;
+    }
+
+    // The transitions that leave from when statement is run from there, under cond, followed by next.
+    private void enter(ParseTree statement, NanoPromelaLocation from, String cond, NanoPromelaLocation next) {
+        List<ParseTree> parts = parts(statement);
+        NanoPromelaLocation after = parts.size() == 1 ? next : sequence(statement, next)[1];
+        ParseTree first = parts.get(0);
+        if (first instanceof NanoPromelaParser.IfstmtContext) {
+            for (NanoPromelaParser.OptionContext option : ((NanoPromelaParser.IfstmtContext) first).option()) {
+                enter(option.stmt(), from, ifCondition(cond, text(option.boolexpr())), after);
+            }
+        } else if (first instanceof NanoPromelaParser.DostmtContext) {
+            NanoPromelaParser.DostmtContext loop = (NanoPromelaParser.DostmtContext) first;
+            NanoPromelaLocation head = location(loop, after);
+            for (NanoPromelaParser.OptionContext option : loop.option()) {
+                enter(option.stmt(), from, doCondition(cond, text(option.boolexpr())), head);
+            }
+            addTransition(from, exitCondition(cond, loop), "", after);
+        } else {
+            addTransition(from, cond, text(first), after);
+        }
+    }
+
+    // Everything else statement adds when followed by next: its inner transitions and those of later parts.
+    private void walk(ParseTree statement, NanoPromelaLocation next) {
+        NanoPromelaLocation[] locations = sequence(statement, next);
+        List<ParseTree> parts = parts(statement);
+        for (int i = 0; i < parts.size(); i++) {
+            ParseTree part = parts.get(i);
+            if (i > 0) {
+                enter(part, locations[i], "", locations[i + 1]);
+            }
+            if (part instanceof NanoPromelaParser.IfstmtContext) {
+                for (NanoPromelaParser.OptionContext option : ((NanoPromelaParser.IfstmtContext) part).option()) {
+                    walk(option.stmt(), locations[i + 1]);
+                }
+            } else if (part instanceof NanoPromelaParser.DostmtContext) {
+                NanoPromelaParser.DostmtContext loop = (NanoPromelaParser.DostmtContext) part;
+                NanoPromelaLocation head = location(loop, locations[i + 1]);
+                for (NanoPromelaParser.OptionContext option : loop.option()) {
+                    enter(option.stmt(), head, "(" + text(option.boolexpr()) + ")", head);
+                    walk(option.stmt(), head);
+                }
+                addTransition(head, exitCondition("", loop), "", locations[i + 1]);
+            }
+        }
+    }
+
+    private void addTransition(NanoPromelaLocation from, String cond, String action, NanoPromelaLocation to) {
+        Object renderedFrom = render.apply(from);
+        Object renderedTo = render.apply(to);
+        pg.addLocation(renderedFrom);
+        pg.addLocation(renderedTo);
+        pg.addTransition(new PGTransition<>(renderedFrom, cond, action, renderedTo));
+    }
+
+    private static String ifCondition(String cond, String option) {
+        if (cond.isEmpty()) {
+            return "(" + option + ")";
+        }
+        if (option.isEmpty()) {
+            return "(" + cond + ")";
+        }
+        return "(" + cond + ") && (" + option + ")";
+    }
+
+    private static String doCondition(String cond, String option) {
+        if (cond.isEmpty()) {
+            return "(" + option + ")";
+        }
+        if (option.isEmpty()) {
+            return "(" + cond + ")";
+        }
+        return cond + " && ((" + option + "))";
+    }
+
+    // Leaving the loop: every option's guard is negated; cond, if any, is added in front.
+    private String exitCondition(String cond, NanoPromelaParser.DostmtContext loop) {
+        List<String> negated = new ArrayList<>();
+        List<String> guards = new ArrayList<>();
+        for (NanoPromelaParser.OptionContext option : loop.option()) {
+            String guard = text(option.boolexpr());
+            negated.add(switchCondition(guard));
+            guards.add("(" + guard + ")");
+        }
+        String finish = String.join(" && ", negated);
+        if (cond.isEmpty() || cond.equals("()")) {
+            return finish;
+        }
+        return cond + " && (!(" + String.join(" || ", guards) + "))";
+    }
+
+    private static String switchCondition(String cond) {
+        StringBuilder SB = new StringBuilder();
+
+        for (int i = 0; i < cond.length(); i++) {
+            if (cond.charAt(i) == '>' && cond.charAt(i + 1) == '=') {
+                SB.append('<');
+                i++;
+            }
+            else if (cond.charAt(i) == '<' && cond.charAt(i + 1) == '=') {
+                SB.append('>');
+                i++;
+            }
+            else if (cond.charAt(i) == '>')
+                SB.append("<=");
+            else if (cond.charAt(i) == '<')
+                SB.append(">=");
+            else if (cond.charAt(i) == '=' && cond.charAt(i + 1) == '=') {
+                SB.append("!=");
+                i++;
+            }
+            else if (cond.charAt(i) == 't' && cond.charAt(i + 1) == 'r' && cond.charAt(i + 2) == 'u' && cond.charAt(i + 3) == 'e') {
+                SB.append("!true");
+                i += 3;
+            }
+            else SB.append(cond.charAt(i));
+        }
+        return SB.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A location of a program graph built from NanoPromela: the statements left
+ * to run, as a statement followed by the location after it. Locations are
+ * hash-consed per graph, so they compare by identity, and share their
+ * suffixes with the locations they lead to. The text, which is the location
+ * name of {@link FvmFacadeImpl#programGraphFromNanoPromela(String)}, is only
+ * rendered when asked for.
+ */
+public final class NanoPromelaLocation {
+
+    private final int id;
+    private final int statement;
+    private final NanoPromelaLocation next;
+    private final NanoPromelaGraphBuilder builder;
+    private String text;
+
+    NanoPromelaLocation(int id, int statement, NanoPromelaLocation next, NanoPromelaGraphBuilder builder) {
+        this.id = id;
+        this.statement = statement;
+        this.next = next;
+        this.builder = builder;
+        if (next == null) {
+            text = "";
+        }
+    }
+
+    /**
+     * @return A number unique to this location within its graph; 0 is the
+     * location after the whole program.
+     */
+    public int getId() {
+        return id;
+    }
+
+    int statement() {
+        return statement;
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        if (text == null) {
+            // Render the unrendered prefix of the chain in one go, without recursing down it.
+            StringBuilder sb = new StringBuilder();
+            NanoPromelaLocation l = this;
+            while (l.text == null) {
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                sb.append(builder.text(l.statement));
+                l = l.next;
+            }
+            if (!l.text.isEmpty()) {
+                sb.append(';').append(l.text);
+            }
+            text = sb.toString();
+        }
+        return text;
+    }
+
+    /**
+     * The text, rendering and keeping those of the locations after this one
+     * first; each text is then one concatenation, for when every location
+     * will be rendered anyway.
+     */
+    String renderWithSuffixes() {
+        List<NanoPromelaLocation> unrendered = new ArrayList<>();
+        for (NanoPromelaLocation l = this; l.text == null; l = l.next) {
+            unrendered.add(l);
+        }
+        for (int i = unrendered.size() - 1; i >= 0; i--) {
+            NanoPromelaLocation l = unrendered.get(i);
+            String statementText = builder.text(l.statement);
+            l.text = l.next.text.isEmpty() ? statementText : statementText + ";" + l.next.text;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,80 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaFileReader;
+import il.ac.bgu.cs.fvm.nanopromela.NanoPromelaParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of NanoPromela syntax trees, keyed by
+ * the SHA-256 digest of their source, so that loading the same model again
+ * skips lexing and parsing. The sources themselves are not kept. The trees
+ * are shared between callers and must not be modified.
+ */
+public class NanoPromelaParseCache {
+
+    private final int capacity;
+    private final Map<ByteBuffer, NanoPromelaParser.StmtContext> entries;
+    private long hits;
+    private long misses;
+
+    NanoPromelaParseCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<ByteBuffer, NanoPromelaParser.StmtContext>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, NanoPromelaParser.StmtContext> eldest) {
+                return size() > NanoPromelaParseCache.this.capacity;
+            }
+        };
+    }
+
+    NanoPromelaParser.StmtContext parse(String source) throws Exception {
+        ByteBuffer key = digest(source);
+        synchronized (this) {
+            NanoPromelaParser.StmtContext known = entries.get(key);
+            if (known != null) {
+                hits++;
+                return known;
+            }
+            misses++;
+        }
+        // Parsed outside the lock; two threads missing on the same source both parse it.
+        NanoPromelaParser.StmtContext root = NanoPromelaFileReader.pareseNanoPromelaString(source);
+        synchronized (this) {
+            if (capacity > 0) {
+                entries.put(key, root);
+            }
+        }
+        return root;
+    }
+
+    private static ByteBuffer digest(String source) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
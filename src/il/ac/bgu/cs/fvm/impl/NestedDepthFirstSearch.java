@@ -0,0 +1,143 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Accepting-cycle detection by nested depth-first search, in the variant of
+ * Schwoon and Esparza: one blue (outer) search, red (inner) searches started
+ * from accepting states in post-order, and a single red set shared by all of
+ * them. A cycle is reported as soon as either search reaches a state on the
+ * blue stack, so every state is expanded at most twice.
+ * <p>
+ * Both searches run on explicit stacks. The states done with the blue
+ * search and the red set are kept in {@link StateStore}s; with an inexact
+ * store, such as a {@link BitstateStateStore}, the search may miss cycles
+ * but reports only real ones.
+ */
+public class NestedDepthFirstSearch implements EmptinessCheck {
+
+    private final Supplier<? extends StateStore<?>> stores;
+
+    public NestedDepthFirstSearch() {
+        this(HashStateStore::new);
+    }
+
+    /**
+     * @param stores Makes the two state stores of each search.
+     */
+    public NestedDepthFirstSearch(Supplier<? extends StateStore<?>> stores) {
+        this.stores = stores;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <N> Lasso<N> findAcceptingCycle(BuchiGraph<N> graph) {
+        if (graph.acceptanceSetCount() != 1) {
+            throw new IllegalArgumentException("Nested DFS needs exactly one acceptance set, got "
+                    + graph.acceptanceSetCount());
+        }
+        Search<N> search = new Search<>(graph, (StateStore<N>) stores.get(), (StateStore<N>) stores.get());
+        for (N s : graph.initialStates()) {
+            if (!search.done.contains(s)) {
+                Lasso<N> lasso = search.blue(s);
+                if (lasso != null) {
+                    return lasso;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class Search<N> {
+        private final BuchiGraph<N> graph;
+        // States done with the blue search; states on the blue stack are in onStack instead.
+        private final StateStore<N> done;
+        private final StateStore<N> red;
+        private final Map<N, Integer> onStack = new HashMap<>();
+        private final List<N> stack = new ArrayList<>();
+        private final List<Iterator<N>> successors = new ArrayList<>();
+
+        Search(BuchiGraph<N> graph, StateStore<N> done, StateStore<N> red) {
+            this.graph = graph;
+            this.done = done;
+            this.red = red;
+        }
+
+        Lasso<N> blue(N root) {
+            push(root);
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                N s = stack.get(top);
+                Iterator<N> it = successors.get(top);
+                if (it.hasNext()) {
+                    N t = it.next();
+                    Integer position = onStack.get(t);
+                    if (position != null) {
+                        if (graph.isAccepting(s) || graph.isAccepting(t)) {
+                            return lasso(position, new ArrayList<>());
+                        }
+                    } else if (!done.contains(t)) {
+                        push(t);
+                    }
+                } else {
+                    if (graph.isAccepting(s)) {
+                        Lasso<N> lasso = red(s);
+                        if (lasso != null) {
+                            return lasso;
+                        }
+                        red.add(s);
+                    }
+                    done.add(s);
+                    onStack.remove(s);
+                    stack.remove(top);
+                    successors.remove(top);
+                }
+            }
+            return null;
+        }
+
+        private void push(N s) {
+            onStack.put(s, stack.size());
+            stack.add(s);
+            successors.add(graph.successors(s).iterator());
+        }
+
+        // Looks for a path from seed back to the blue stack, through blue states only.
+        private Lasso<N> red(N seed) {
+            List<N> path = new ArrayList<>();
+            List<Iterator<N>> pathSuccessors = new ArrayList<>();
+            path.add(seed);
+            pathSuccessors.add(graph.successors(seed).iterator());
+            while (!path.isEmpty()) {
+                Iterator<N> it = pathSuccessors.get(path.size() - 1);
+                if (it.hasNext()) {
+                    N t = it.next();
+                    Integer position = onStack.get(t);
+                    if (position != null) {
+                        return lasso(position, new ArrayList<>(path.subList(1, path.size())));
+                    }
+                    if (done.contains(t) && red.add(t)) {
+                        path.add(t);
+                        pathSuccessors.add(graph.successors(t).iterator());
+                    }
+                } else {
+                    path.remove(path.size() - 1);
+                    pathSuccessors.remove(pathSuccessors.size() - 1);
+                }
+            }
+            return null;
+        }
+
+        // The blue stack up to position, then around from there through the top and tail.
+        private Lasso<N> lasso(int position, List<N> tail) {
+            List<N> cycle = new ArrayList<>(stack.subList(position, stack.size()));
+            cycle.addAll(tail);
+            return new Lasso<>(new ArrayList<>(stack.subList(0, position)), cycle);
+        }
+    }
+}
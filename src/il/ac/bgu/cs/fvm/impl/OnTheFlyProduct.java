@@ -0,0 +1,94 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.automata.Automaton;
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+import il.ac.bgu.cs.fvm.util.Pair;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * The product of a transition system and an automaton, as in
+ * {@link FvmFacadeImpl#product}, but never materialized: successors are
+ * computed from the transition system's successor relation and the
+ * automaton's transitions when a search asks for them.
+ *
+ * @see GeneralizedOnTheFlyProduct
+ */
+public class OnTheFlyProduct<S, A, P, Saut> implements BuchiGraph<Pair<S, Saut>> {
+
+    private final Set<S> tsInitialStates;
+    private final Function<S, Set<S>> tsPost;
+    private final Function<S, Set<P>> tsLabels;
+    private final Map<Saut, Map<Set<P>, Set<Saut>>> autTransitions;
+    private final Set<Saut> autInitialStates;
+    private final Set<Saut> acceptingStates;
+
+    /**
+     * @param tsPost The single-step successor relation of {@code ts}.
+     */
+    public OnTheFlyProduct(TransitionSystem<S, A, P> ts, Automaton<Saut, P> aut, Function<S, Set<S>> tsPost) {
+        this(ts.getInitialStates(), tsPost, ts::getLabel, aut);
+    }
+
+    /**
+     * A product with a system given only by its initial states, successor
+     * relation and labeling, e.g. one whose states are generated on demand.
+     */
+    public OnTheFlyProduct(Set<S> initialStates, Function<S, Set<S>> post, Function<S, Set<P>> labels, Automaton<Saut, P> aut) {
+        this(initialStates, post, labels, aut.getTransitions(), aut.getInitialStates(), aut.getAcceptingStates());
+    }
+
+    OnTheFlyProduct(Set<S> initialStates, Function<S, Set<S>> post, Function<S, Set<P>> labels,
+                    Map<Saut, Map<Set<P>, Set<Saut>>> autTransitions, Set<Saut> autInitialStates,
+                    Set<Saut> acceptingStates) {
+        this.tsInitialStates = initialStates;
+        this.tsPost = post;
+        this.tsLabels = labels;
+        this.autTransitions = autTransitions;
+        this.autInitialStates = autInitialStates;
+        this.acceptingStates = acceptingStates;
+    }
+
+    @Override
+    public Set<Pair<S, Saut>> initialStates() {
+        Set<Pair<S, Saut>> initialStates = new HashSet<>();
+        for (S s : tsInitialStates) {
+            for (Saut q0 : autInitialStates) {
+                for (Saut q : next(q0, s)) {
+                    initialStates.add(new Pair<>(s, q));
+                }
+            }
+        }
+        return initialStates;
+    }
+
+    @Override
+    public Set<Pair<S, Saut>> successors(Pair<S, Saut> state) {
+        Set<Pair<S, Saut>> successors = new HashSet<>();
+        for (S s : tsPost.apply(state.getFirst())) {
+            for (Saut q : next(state.getSecond(), s)) {
+                successors.add(new Pair<>(s, q));
+            }
+        }
+        return successors;
+    }
+
+    @Override
+    public boolean isAccepting(Pair<S, Saut> state) {
+        return acceptingStates.contains(state.getSecond());
+    }
+
+    // The automaton states reached from q by reading the label of s.
+    private Set<Saut> next(Saut q, S s) {
+        Map<Set<P>, Set<Saut>> outgoing = autTransitions.get(q);
+        if (outgoing == null) {
+            return Collections.emptySet();
+        }
+        Set<Saut> targets = outgoing.get(tsLabels.apply(s));
+        return targets == null ? Collections.emptySet() : targets;
+    }
+}
@@ -0,0 +1,228 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-core accepting-cycle detection by CNDFS (Evangelista, Laarman,
+ * Petrucci and van de Pol). Every worker runs its own nested DFS over the
+ * whole graph, each in a different random successor order; the blue and red
+ * colors are shared, the cyan (on-stack) color is per worker. A worker whose
+ * red search leaves from an accepting seed waits until the other accepting
+ * states that search met are red, which keeps the shared red set sound.
+ * <p>
+ * The first worker to close a cycle reports a lasso built from its own
+ * stacks, as in {@link NestedDepthFirstSearch}, and stops the others. A
+ * worker that fails stops them too, and its exception is rethrown. The
+ * graph is read from several threads at once, so its successor function
+ * must not mutate shared state.
+ */
+public class ParallelNestedDepthFirstSearch implements EmptinessCheck {
+
+    private final int threads;
+
+    public ParallelNestedDepthFirstSearch(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+        }
+        this.threads = threads;
+    }
+
+    @Override
+    public <N> Lasso<N> findAcceptingCycle(BuchiGraph<N> graph) {
+        if (graph.acceptanceSetCount() != 1) {
+            throw new IllegalArgumentException("Nested DFS needs exactly one acceptance set, got "
+                    + graph.acceptanceSetCount());
+        }
+        Shared<N> shared = new Shared<>(graph);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            CompletionService<Void> workers = new ExecutorCompletionService<>(pool);
+            for (int i = 0; i < threads; i++) {
+                workers.submit(new Worker<>(shared, i), null);
+            }
+            // In completion order, so that the first failure is rethrown at once and the finally cancels the rest.
+            for (int i = 0; i < threads; i++) {
+                workers.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while searching for an accepting cycle", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return shared.result.get();
+    }
+
+    private static class Shared<N> {
+        private final BuchiGraph<N> graph;
+        private final Set<N> blue = ConcurrentHashMap.newKeySet();
+        private final Set<N> red = ConcurrentHashMap.newKeySet();
+        private final AtomicReference<Lasso<N>> result = new AtomicReference<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Shared(BuchiGraph<N> graph) {
+            this.graph = graph;
+        }
+
+        boolean stopped() {
+            return result.get() != null || failure.get() != null;
+        }
+    }
+
+    private static class Worker<N> implements Runnable {
+        private final Shared<N> shared;
+        private final BuchiGraph<N> graph;
+        // Worker 0 keeps the graph's own order, the others shuffle.
+        private final Random random;
+        private final Map<N, Integer> cyan = new HashMap<>();
+        private final List<N> stack = new ArrayList<>();
+        private final List<Iterator<N>> stackSuccessors = new ArrayList<>();
+
+        Worker(Shared<N> shared, int id) {
+            this.shared = shared;
+            this.graph = shared.graph;
+            this.random = id == 0 ? null : new Random(id);
+        }
+
+        @Override
+        public void run() {
+            try {
+                search();
+            } catch (Throwable e) {
+                // Stops the others, some of which may be waiting on this worker's red searches.
+                shared.failure.compareAndSet(null, e);
+                throw e;
+            }
+        }
+
+        private void search() {
+            for (N s : ordered(graph.initialStates())) {
+                if (shared.stopped()) {
+                    return;
+                }
+                if (!shared.blue.contains(s)) {
+                    blue(s);
+                }
+            }
+        }
+
+        private void blue(N root) {
+            push(root);
+            while (!stack.isEmpty()) {
+                if (shared.stopped()) {
+                    return;
+                }
+                int top = stack.size() - 1;
+                N s = stack.get(top);
+                Iterator<N> it = stackSuccessors.get(top);
+                if (it.hasNext()) {
+                    N t = it.next();
+                    Integer position = cyan.get(t);
+                    if (position != null) {
+                        if (graph.isAccepting(s) || graph.isAccepting(t)) {
+                            report(position, new ArrayList<>());
+                            return;
+                        }
+                    } else if (!shared.blue.contains(t)) {
+                        push(t);
+                    }
+                } else {
+                    shared.blue.add(s);
+                    if (graph.isAccepting(s) && !red(s)) {
+                        return;
+                    }
+                    cyan.remove(s);
+                    stack.remove(top);
+                    stackSuccessors.remove(top);
+                }
+            }
+        }
+
+        private void push(N s) {
+            cyan.put(s, stack.size());
+            stack.add(s);
+            stackSuccessors.add(ordered(graph.successors(s)).iterator());
+        }
+
+        // Returns false if the search is over, either because this red search closed a cycle or another worker did.
+        private boolean red(N seed) {
+            Set<N> visited = new HashSet<>();
+            List<N> path = new ArrayList<>();
+            List<Iterator<N>> pathSuccessors = new ArrayList<>();
+            visited.add(seed);
+            path.add(seed);
+            pathSuccessors.add(ordered(graph.successors(seed)).iterator());
+            while (!path.isEmpty()) {
+                if (shared.stopped()) {
+                    return false;
+                }
+                Iterator<N> it = pathSuccessors.get(path.size() - 1);
+                if (it.hasNext()) {
+                    N t = it.next();
+                    Integer position = cyan.get(t);
+                    if (position != null) {
+                        report(position, new ArrayList<>(path.subList(1, path.size())));
+                        return false;
+                    }
+                    if (!visited.contains(t) && !shared.red.contains(t)) {
+                        visited.add(t);
+                        path.add(t);
+                        pathSuccessors.add(ordered(graph.successors(t)).iterator());
+                    }
+                } else {
+                    path.remove(path.size() - 1);
+                    pathSuccessors.remove(pathSuccessors.size() - 1);
+                }
+            }
+            for (N s : visited) {
+                if (!s.equals(seed) && graph.isAccepting(s)) {
+                    while (!shared.red.contains(s)) {
+                        if (shared.stopped() || Thread.currentThread().isInterrupted()) {
+                            return false;
+                        }
+                        Thread.yield();
+                    }
+                }
+            }
+            shared.red.addAll(visited);
+            return true;
+        }
+
+        private void report(int position, List<N> tail) {
+            List<N> cycle = new ArrayList<>(stack.subList(position, stack.size()));
+            cycle.addAll(tail);
+            shared.result.compareAndSet(null, new Lasso<>(new ArrayList<>(stack.subList(0, position)), cycle));
+        }
+
+        private List<N> ordered(Set<N> states) {
+            List<N> list = new ArrayList<>(states);
+            if (random != null) {
+                Collections.shuffle(list, random);
+            }
+            return list;
+        }
+    }
+}
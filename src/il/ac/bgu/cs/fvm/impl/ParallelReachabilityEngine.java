@@ -0,0 +1,61 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Level-synchronous parallel breadth-first exploration. Each BFS level is
+ * expanded by a parallel stream running on a dedicated {@link ForkJoinPool};
+ * the visited set is a concurrent hash set, so every state lands in exactly
+ * one next level.
+ * <p>
+ * The successor function is called from several threads at once, so it must
+ * not mutate shared state.
+ */
+public class ParallelReachabilityEngine<S> {
+
+    private final Function<? super S, ? extends Collection<? extends S>> successors;
+    private final int threads;
+
+    public ParallelReachabilityEngine(Function<? super S, ? extends Collection<? extends S>> successors, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive, got " + threads);
+        }
+        this.successors = successors;
+        this.threads = threads;
+    }
+
+    /**
+     * @return All states reachable from {@code initialStates}, which are included.
+     */
+    public Set<S> run(Collection<? extends S> initialStates) {
+        Set<S> visited = ConcurrentHashMap.newKeySet();
+        List<S> level = new ArrayList<>();
+        for (S s : initialStates) {
+            if (visited.add(s)) {
+                level.add(s);
+            }
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            while (!level.isEmpty()) {
+                List<S> current = level;
+                // A parallel stream started from within a pool task runs on that pool.
+                level = pool.submit(() -> current.parallelStream()
+                        .flatMap(s -> successors.apply(s).stream())
+                        .filter(visited::add)
+                        .collect(Collectors.<S>toList()))
+                        .join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return visited;
+    }
+}
@@ -0,0 +1,432 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Explicit-worklist state-space exploration. Unlike a recursive search, the
+ * depth it can reach is bounded by the heap, not by the call stack.
+ * <p>
+ * A state is handed to the discovery listener exactly once (as far as the
+ * {@link StateStore} can tell), when it is first seen - before its successors
+ * are computed.
+ * <p>
+ * With {@link #spillToDisk}, the search is instead a breadth-first one whose
+ * visited set and frontier live in files, with delayed duplicate detection:
+ * the successors of a whole level are collected in a bounded buffer, spilled
+ * as sorted runs when it fills, and only checked against the visited states
+ * once the level is done, by merging the runs with the sorted visited file.
+ * <p>
+ * With {@link #spillVisitedToDisk}, states have no codes they can be rebuilt
+ * from, only fingerprints, so the states waiting to be expanded stay in
+ * memory and only the visited set is in a file, as in Stern and Dill's disk
+ * Mur&phi;: new successors are collected in a bounded table and checked
+ * against the file in one merge pass whenever it fills, or when no checked
+ * state is left to expand. As the latter happens once per breadth-first
+ * level, deep and narrow state spaces make for many passes.
+ */
+public class ReachabilityEngine<S> {
+
+    private final Function<? super S, ? extends Iterable<? extends S>> successors;
+    private SearchOrder order = SearchOrder.DFS;
+    private StateStore<S> visited = new HashStateStore<>();
+    private Consumer<? super S> onDiscover = s -> { };
+    private Path spillDirectory;
+    private int bufferedCodes;
+    private ToLongFunction<? super S> encode;
+    private LongFunction<? extends S> decode;
+
+    public ReachabilityEngine(Function<? super S, ? extends Iterable<? extends S>> successors) {
+        this.successors = successors;
+    }
+
+    public ReachabilityEngine<S> order(SearchOrder order) {
+        this.order = order;
+        return this;
+    }
+
+    public ReachabilityEngine<S> store(StateStore<S> visited) {
+        this.visited = visited;
+        return this;
+    }
+
+    public ReachabilityEngine<S> onDiscover(Consumer<? super S> onDiscover) {
+        this.onDiscover = onDiscover;
+        return this;
+    }
+
+    /**
+     * Keeps the visited states and the frontier in files under
+     * {@code directory} instead, as non-negative {@code long} codes, holding
+     * at most {@code bufferedCodes} unchecked successor codes in memory. The
+     * order and store settings are then ignored, and {@link #run} returns a
+     * {@link DiskStateStore}, which the caller must close. The other files
+     * of the search are deleted before {@code run} returns or throws.
+     *
+     * @param encode Gives each state a distinct code.
+     * @param decode Gives the state of a code.
+     */
+    public ReachabilityEngine<S> spillToDisk(Path directory, int bufferedCodes,
+                                             ToLongFunction<? super S> encode, LongFunction<? extends S> decode) {
+        if (bufferedCodes < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive, got " + bufferedCodes);
+        }
+        this.spillDirectory = directory;
+        this.bufferedCodes = bufferedCodes;
+        this.encode = encode;
+        this.decode = decode;
+        return this;
+    }
+
+    /**
+     * Keeps the visited states in a file under {@code directory} instead, as
+     * sorted 64-bit fingerprints, holding at most {@code bufferedStates}
+     * unchecked successors and the states waiting to be expanded in memory.
+     * The order and store settings are then ignored, and {@link #run} returns
+     * a {@link DiskStateStore}, which the caller must close. Two states with
+     * the same fingerprint are taken for one, so, as with hash compaction, a
+     * search over n states misses one with a probability of about
+     * n<sup>2</sup>/2<sup>65</sup>.
+     */
+    public ReachabilityEngine<S> spillVisitedToDisk(Path directory, int bufferedStates,
+                                                    ToLongFunction<? super S> fingerprint) {
+        spillToDisk(directory, bufferedStates, fingerprint, null);
+        return this;
+    }
+
+    /**
+     * Explores everything reachable from {@code initialStates}.
+     *
+     * @return The store holding the visited states.
+     */
+    public StateStore<S> run(Iterable<? extends S> initialStates) {
+        if (spillDirectory != null) {
+            return decode != null ? runOnDisk(initialStates) : new FingerprintSearch().run(initialStates);
+        }
+        Deque<S> frontier = new ArrayDeque<>();
+        for (S s : initialStates) {
+            discover(s, frontier);
+        }
+        while (!frontier.isEmpty()) {
+            S s = order == SearchOrder.BFS ? frontier.pollFirst() : frontier.pollLast();
+            for (S next : successors.apply(s)) {
+                discover(next, frontier);
+            }
+        }
+        return visited;
+    }
+
+    private void discover(S s, Deque<S> frontier) {
+        if (visited.add(s)) {
+            onDiscover.accept(s);
+            frontier.addLast(s);
+        }
+    }
+
+    private DiskStateStore<S> runOnDisk(Iterable<? extends S> initialStates) {
+        Candidates candidates = new Candidates();
+        LongFile visitedCodes = null;
+        LongFile level = null;
+        LongFile newVisited = null;
+        try {
+            for (S s : initialStates) {
+                candidates.add(encode.applyAsLong(s));
+            }
+            visitedCodes = LongFile.create(spillDirectory);
+            while (true) {
+                // Delayed duplicate detection: the level's candidates against everything visited before it.
+                level = LongFile.create(spillDirectory);
+                newVisited = LongFile.create(spillDirectory);
+                LongFile newLevel = level;
+                merge(candidates.sorted(), visitedCodes, newVisited, code -> {
+                    newLevel.append(code);
+                    onDiscover.accept(decode.apply(code));
+                });
+                candidates.clear();
+                visitedCodes.delete();
+                visitedCodes = newVisited;
+                newVisited = null;
+                if (level.size() == 0) {
+                    DiskStateStore<S> result = new DiskStateStore<>(visitedCodes, encode, decode);
+                    visitedCodes = null;
+                    return result;
+                }
+                for (long i = 0; i < level.size(); i++) {
+                    for (S next : successors.apply(decode.apply(level.get(i)))) {
+                        candidates.add(encode.applyAsLong(next));
+                    }
+                }
+                level.delete();
+                level = null;
+            }
+        } finally {
+            // Whether the search finished or failed, only the file of the returned store is kept.
+            candidates.clear();
+            for (LongFile file : Arrays.asList(visitedCodes, level, newVisited)) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // Writes the union of the sorted distinct codes of fresh and of visited to merged, handing the new ones to onFresh.
+    private static void merge(Cursor fresh, LongFile visited, LongFile merged, LongConsumer onFresh) {
+        long v = 0;
+        while (fresh.valid) {
+            while (v < visited.size() && visited.get(v) < fresh.value) {
+                merged.append(visited.get(v++));
+            }
+            if (v < visited.size() && visited.get(v) == fresh.value) {
+                merged.append(visited.get(v++));
+            } else {
+                merged.append(fresh.value);
+                onFresh.accept(fresh.value);
+            }
+            fresh.next();
+        }
+        while (v < visited.size()) {
+            merged.append(visited.get(v++));
+        }
+    }
+
+    // The search of spillVisitedToDisk: a queue of states, the unchecked successors by fingerprint, the visited file.
+    private final class FingerprintSearch {
+        private final long[] codes = new long[bufferedCodes];
+        private final Object[] states = new Object[bufferedCodes];
+        // Indices into codes by fingerprint, open addressing, -1 for free slots.
+        private final int[] slots = new int[Integer.highestOneBit(bufferedCodes) * 4];
+        private int size;
+        private final Deque<S> queue = new ArrayDeque<>();
+        private LongFile visitedCodes;
+
+        DiskStateStore<S> run(Iterable<? extends S> initialStates) {
+            Arrays.fill(slots, -1);
+            try {
+                visitedCodes = LongFile.create(spillDirectory);
+                for (S s : initialStates) {
+                    add(s);
+                }
+                check();
+                while (!queue.isEmpty()) {
+                    for (S next : successors.apply(queue.poll())) {
+                        add(next);
+                    }
+                    if (queue.isEmpty()) {
+                        check();
+                    }
+                }
+                DiskStateStore<S> result = new DiskStateStore<>(visitedCodes, encode, null);
+                visitedCodes = null;
+                return result;
+            } finally {
+                if (visitedCodes != null) {
+                    visitedCodes.delete();
+                }
+            }
+        }
+
+        private void add(S state) {
+            long code = encode.applyAsLong(state);
+            int slot = slotOf(code);
+            if (slots[slot] >= 0) {
+                return;
+            }
+            if (size == codes.length) {
+                check();
+                slot = slotOf(code);
+            }
+            codes[size] = code;
+            states[size] = state;
+            slots[slot] = size++;
+        }
+
+        // The slot holding code, or else the free slot where it goes.
+        private int slotOf(long code) {
+            int mask = slots.length - 1;
+            int slot = (int) (code ^ code >>> 32) & mask;
+            while (slots[slot] >= 0 && codes[slots[slot]] != code) {
+                slot = slot + 1 & mask;
+            }
+            return slot;
+        }
+
+        // Checks the unchecked successors against the visited file, queueing the new ones.
+        @SuppressWarnings("unchecked")
+        private void check() {
+            if (size == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(codes, size);
+            Arrays.sort(sorted);
+            LongFile merged = LongFile.create(spillDirectory);
+            boolean done = false;
+            try {
+                merge(new ArrayCursor(sorted, size), visitedCodes, merged, code -> {
+                    S s = (S) states[slots[slotOf(code)]];
+                    onDiscover.accept(s);
+                    queue.add(s);
+                });
+                done = true;
+            } finally {
+                if (!done) {
+                    merged.delete();
+                }
+            }
+            visitedCodes.delete();
+            visitedCodes = merged;
+            Arrays.fill(slots, -1);
+            Arrays.fill(states, 0, size, null);
+            size = 0;
+        }
+    }
+
+    // The successor codes of a level: a buffer, and the sorted runs it was spilled to when full.
+    private final class Candidates {
+        private final long[] buffer = new long[bufferedCodes];
+        private int size;
+        private final List<LongFile> runs = new ArrayList<>();
+
+        void add(long code) {
+            if (size == buffer.length) {
+                size = sortUnique(buffer, size);
+                if (size * 2 > buffer.length) {
+                    spill();
+                }
+            }
+            buffer[size++] = code;
+        }
+
+        private void spill() {
+            size = sortUnique(buffer, size);
+            LongFile run = LongFile.create(spillDirectory);
+            for (int i = 0; i < size; i++) {
+                run.append(buffer[i]);
+            }
+            runs.add(run);
+            size = 0;
+        }
+
+        // The distinct codes, in increasing order.
+        Cursor sorted() {
+            if (runs.isEmpty()) {
+                return new ArrayCursor(buffer, sortUnique(buffer, size));
+            }
+            spill();
+            List<Cursor> cursors = new ArrayList<>();
+            for (LongFile run : runs) {
+                cursors.add(new FileCursor(run));
+            }
+            return new MergeCursor(cursors);
+        }
+
+        void clear() {
+            for (LongFile run : runs) {
+                run.delete();
+            }
+            runs.clear();
+            size = 0;
+        }
+    }
+
+    private static int sortUnique(long[] codes, int size) {
+        Arrays.sort(codes, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || codes[unique - 1] != codes[i]) {
+                codes[unique++] = codes[i];
+            }
+        }
+        return unique;
+    }
+
+    // A position in a sorted sequence of codes; value is the current one while valid.
+    private abstract static class Cursor {
+        boolean valid;
+        long value;
+
+        abstract void next();
+    }
+
+    private static final class ArrayCursor extends Cursor {
+        private final long[] codes;
+        private final int size;
+        private int position = -1;
+
+        ArrayCursor(long[] codes, int size) {
+            this.codes = codes;
+            this.size = size;
+            next();
+        }
+
+        @Override
+        void next() {
+            valid = ++position < size;
+            if (valid) {
+                value = codes[position];
+            }
+        }
+    }
+
+    private static final class FileCursor extends Cursor {
+        private final LongFile codes;
+        private long position = -1;
+
+        FileCursor(LongFile codes) {
+            this.codes = codes;
+            next();
+        }
+
+        @Override
+        void next() {
+            valid = ++position < codes.size();
+            if (valid) {
+                value = codes.get(position);
+            }
+        }
+    }
+
+    // Merges sorted cursors, dropping repeats.
+    private static final class MergeCursor extends Cursor {
+        private final PriorityQueue<Cursor> heads = new PriorityQueue<>((a, b) -> Long.compare(a.value, b.value));
+
+        MergeCursor(List<Cursor> cursors) {
+            for (Cursor cursor : cursors) {
+                if (cursor.valid) {
+                    heads.add(cursor);
+                }
+            }
+            next();
+        }
+
+        @Override
+        void next() {
+            boolean first = !valid;
+            long last = value;
+            valid = false;
+            while (!heads.isEmpty()) {
+                Cursor head = heads.poll();
+                long code = head.value;
+                head.next();
+                if (head.valid) {
+                    heads.add(head);
+                }
+                if (first || code != last) {
+                    valid = true;
+                    value = code;
+                    return;
+                }
+            }
+        }
+    }
+}
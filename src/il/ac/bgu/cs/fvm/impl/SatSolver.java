@@ -0,0 +1,516 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A CDCL SAT solver: two watched literals, first-UIP clause learning with
+ * local minimization, activity-ordered branching with phase saving, Luby
+ * restarts and LBD-based deletion of learnt clauses. Clauses can be added
+ * between calls, and each call can be made under assumptions, so a problem
+ * can be grown and re-queried incrementally.
+ * <p>
+ * Variables are numbered from 0; literal {@code 2v} is variable v and
+ * {@code 2v + 1} its negation.
+ */
+class SatSolver {
+
+    private static final byte UNDEF = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+
+    private static final class Clause {
+        final int[] lits;
+        int lbd;
+        boolean deleted;
+
+        Clause(int[] lits) {
+            this.lits = lits;
+        }
+    }
+
+    private int vars;
+    private byte[] assigns = new byte[0];
+    private int[] levels = new int[0];
+    private Clause[] reasons = new Clause[0];
+    private boolean[] phases = new boolean[0];
+    private boolean[] seen = new boolean[0];
+    private double[] activity = new double[0];
+    private List<List<Clause>> watches = new ArrayList<>();
+
+    private int[] trail = new int[0];
+    private int trailSize;
+    private int propagated;
+    private int[] trailLimits = new int[16];
+    private int decisionLevel;
+
+    private final List<Clause> learnts = new ArrayList<>();
+    private int clauses;
+    private double maxLearnts;
+    private double variableIncrement = 1;
+    private boolean ok = true;
+    private boolean[] model = new boolean[0];
+    private long conflicts;
+    private long[] levelStamps = new long[0];
+    private long stamp;
+
+    // Binary max-heap of variables by activity; position -1 when absent.
+    private int[] heap = new int[0];
+    private int heapSize;
+    private int[] heapPositions = new int[0];
+
+    static int positive(int var) {
+        return 2 * var;
+    }
+
+    static int negative(int var) {
+        return 2 * var + 1;
+    }
+
+    static int negate(int lit) {
+        return lit ^ 1;
+    }
+
+    int newVar() {
+        int v = vars++;
+        if (v == assigns.length) {
+            int capacity = Math.max(16, v * 2);
+            assigns = Arrays.copyOf(assigns, capacity);
+            levels = Arrays.copyOf(levels, capacity);
+            reasons = Arrays.copyOf(reasons, capacity);
+            phases = Arrays.copyOf(phases, capacity);
+            seen = Arrays.copyOf(seen, capacity);
+            activity = Arrays.copyOf(activity, capacity);
+            trail = Arrays.copyOf(trail, capacity);
+            heap = Arrays.copyOf(heap, capacity);
+            heapPositions = Arrays.copyOf(heapPositions, capacity);
+        }
+        watches.add(new ArrayList<>());
+        watches.add(new ArrayList<>());
+        heapPositions[v] = -1;
+        heapInsert(v);
+        return v;
+    }
+
+    int variables() {
+        return vars;
+    }
+
+    long conflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Adds a clause for good. Returns false if the problem is now known to be
+     * unsatisfiable.
+     */
+    boolean addClause(int... lits) {
+        cancelUntil(0);
+        if (!ok) {
+            return false;
+        }
+        int[] sorted = lits.clone();
+        Arrays.sort(sorted);
+        int size = 0;
+        int previous = -1;
+        for (int lit : sorted) {
+            if (value(lit) == TRUE || lit == negate(previous)) {
+                return true;
+            }
+            if (lit != previous && value(lit) != FALSE) {
+                sorted[size++] = lit;
+            }
+            previous = lit;
+        }
+        if (size == 0) {
+            ok = false;
+        } else if (size == 1) {
+            enqueue(sorted[0], null);
+            ok = propagate() == null;
+        } else {
+            attach(new Clause(Arrays.copyOf(sorted, size)));
+            clauses++;
+        }
+        return ok;
+    }
+
+    /**
+     * @return Whether the clauses have a model in which every assumption is
+     * true; if so, the model is available through {@link #modelValue}.
+     */
+    boolean solve(int... assumptions) {
+        cancelUntil(0);
+        if (!ok) {
+            return false;
+        }
+        maxLearnts = Math.max(clauses / 3.0, 2000);
+        for (int restart = 0; ; restart++) {
+            Boolean result = search(luby(restart) * 100, assumptions);
+            if (result != null) {
+                cancelUntil(0);
+                return result;
+            }
+        }
+    }
+
+    boolean modelValue(int var) {
+        return var < model.length && model[var];
+    }
+
+    private Boolean search(long budget, int[] assumptions) {
+        long searchConflicts = 0;
+        int[] learnt = new int[vars];
+        while (true) {
+            Clause conflict = propagate();
+            if (conflict != null) {
+                conflicts++;
+                searchConflicts++;
+                if (decisionLevel == 0) {
+                    ok = false;
+                    return false;
+                }
+                int size = analyze(conflict, learnt);
+                int backtrackLevel = 0;
+                for (int i = 1; i < size; i++) {
+                    if (levels[learnt[i] >> 1] > backtrackLevel) {
+                        backtrackLevel = levels[learnt[i] >> 1];
+                        int swap = learnt[1];
+                        learnt[1] = learnt[i];
+                        learnt[i] = swap;
+                    }
+                }
+                int lbd = lbd(learnt, size);
+                cancelUntil(backtrackLevel);
+                if (size == 1) {
+                    enqueue(learnt[0], null);
+                } else {
+                    Clause c = new Clause(Arrays.copyOf(learnt, size));
+                    c.lbd = lbd;
+                    learnts.add(c);
+                    attach(c);
+                    enqueue(learnt[0], c);
+                }
+                variableIncrement /= 0.95;
+            } else {
+                if (searchConflicts >= budget) {
+                    cancelUntil(0);
+                    return null;
+                }
+                if (learnts.size() >= maxLearnts + trailSize) {
+                    reduceLearnts();
+                }
+                int next = -1;
+                while (decisionLevel < assumptions.length) {
+                    int assumption = assumptions[decisionLevel];
+                    byte value = value(assumption);
+                    if (value == TRUE) {
+                        newDecisionLevel();
+                    } else if (value == FALSE) {
+                        cancelUntil(0);
+                        return false;
+                    } else {
+                        next = assumption;
+                        break;
+                    }
+                }
+                if (next == -1) {
+                    next = pickBranch();
+                    if (next == -1) {
+                        model = new boolean[vars];
+                        for (int v = 0; v < vars; v++) {
+                            model[v] = assigns[v] == TRUE;
+                        }
+                        return true;
+                    }
+                }
+                newDecisionLevel();
+                enqueue(next, null);
+            }
+        }
+    }
+
+    private byte value(int lit) {
+        byte a = assigns[lit >> 1];
+        if (a == UNDEF) {
+            return UNDEF;
+        }
+        return (a == TRUE) == ((lit & 1) == 0) ? TRUE : FALSE;
+    }
+
+    private void enqueue(int lit, Clause reason) {
+        int v = lit >> 1;
+        assigns[v] = (lit & 1) == 0 ? TRUE : FALSE;
+        levels[v] = decisionLevel;
+        reasons[v] = reason;
+        trail[trailSize++] = lit;
+    }
+
+    private void newDecisionLevel() {
+        if (decisionLevel == trailLimits.length) {
+            trailLimits = Arrays.copyOf(trailLimits, decisionLevel * 2);
+        }
+        trailLimits[decisionLevel++] = trailSize;
+    }
+
+    private void cancelUntil(int level) {
+        if (decisionLevel <= level) {
+            return;
+        }
+        for (int i = trailSize - 1; i >= trailLimits[level]; i--) {
+            int v = trail[i] >> 1;
+            phases[v] = assigns[v] == TRUE;
+            assigns[v] = UNDEF;
+            reasons[v] = null;
+            if (heapPositions[v] < 0) {
+                heapInsert(v);
+            }
+        }
+        trailSize = trailLimits[level];
+        propagated = trailSize;
+        decisionLevel = level;
+    }
+
+    // A clause is watched by its first two literals, in the lists of their negations.
+    private void attach(Clause c) {
+        watches.get(negate(c.lits[0])).add(c);
+        watches.get(negate(c.lits[1])).add(c);
+    }
+
+    private Clause propagate() {
+        while (propagated < trailSize) {
+            int p = trail[propagated++];
+            int falseLit = negate(p);
+            List<Clause> watching = watches.get(p);
+            int kept = 0;
+            int i = 0;
+            Clause conflict = null;
+            for (; i < watching.size(); i++) {
+                Clause c = watching.get(i);
+                if (c.deleted) {
+                    continue;
+                }
+                int[] lits = c.lits;
+                if (lits[0] == falseLit) {
+                    lits[0] = lits[1];
+                    lits[1] = falseLit;
+                }
+                if (value(lits[0]) == TRUE) {
+                    watching.set(kept++, c);
+                    continue;
+                }
+                boolean moved = false;
+                for (int k = 2; k < lits.length; k++) {
+                    if (value(lits[k]) != FALSE) {
+                        lits[1] = lits[k];
+                        lits[k] = falseLit;
+                        watches.get(negate(lits[1])).add(c);
+                        moved = true;
+                        break;
+                    }
+                }
+                if (moved) {
+                    continue;
+                }
+                watching.set(kept++, c);
+                if (value(lits[0]) == FALSE) {
+                    conflict = c;
+                    propagated = trailSize;
+                    for (i++; i < watching.size(); i++) {
+                        watching.set(kept++, watching.get(i));
+                    }
+                    break;
+                }
+                enqueue(lits[0], c);
+            }
+            watching.subList(kept, watching.size()).clear();
+            if (conflict != null) {
+                return conflict;
+            }
+        }
+        return null;
+    }
+
+    // First-UIP learning into learnt[0..size), with the asserting literal first.
+    private int analyze(Clause conflict, int[] learnt) {
+        int size = 1;
+        int pending = 0;
+        int p = -1;
+        int index = trailSize - 1;
+        Clause c = conflict;
+        do {
+            for (int j = p == -1 ? 0 : 1; j < c.lits.length; j++) {
+                int q = c.lits[j];
+                int v = q >> 1;
+                if (!seen[v] && levels[v] > 0) {
+                    seen[v] = true;
+                    bump(v);
+                    if (levels[v] >= decisionLevel) {
+                        pending++;
+                    } else {
+                        learnt[size++] = q;
+                    }
+                }
+            }
+            while (!seen[trail[index] >> 1]) {
+                index--;
+            }
+            p = trail[index--];
+            c = reasons[p >> 1];
+            seen[p >> 1] = false;
+            pending--;
+        } while (pending > 0);
+        learnt[0] = negate(p);
+
+        // Drop literals implied by the rest of the clause through their reasons.
+        int[] original = Arrays.copyOf(learnt, size);
+        int kept = 1;
+        for (int i = 1; i < size; i++) {
+            Clause reason = reasons[learnt[i] >> 1];
+            boolean redundant = reason != null;
+            if (redundant) {
+                for (int j = 1; j < reason.lits.length; j++) {
+                    int v = reason.lits[j] >> 1;
+                    if (!seen[v] && levels[v] > 0) {
+                        redundant = false;
+                        break;
+                    }
+                }
+            }
+            if (!redundant) {
+                learnt[kept++] = learnt[i];
+            }
+        }
+        for (int i = 1; i < size; i++) {
+            seen[original[i] >> 1] = false;
+        }
+        return kept;
+    }
+
+    // The number of distinct decision levels in lits[0..size).
+    private int lbd(int[] lits, int size) {
+        if (levelStamps.length <= decisionLevel) {
+            levelStamps = new long[decisionLevel * 2 + 1];
+        }
+        stamp++;
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int level = levels[lits[i] >> 1];
+            if (levelStamps[level] != stamp) {
+                levelStamps[level] = stamp;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void reduceLearnts() {
+        learnts.sort((a, b) -> a.lbd != b.lbd ? Integer.compare(b.lbd, a.lbd)
+                : Integer.compare(b.lits.length, a.lits.length));
+        int limit = learnts.size() / 2;
+        int removed = 0;
+        List<Clause> kept = new ArrayList<>();
+        for (Clause c : learnts) {
+            boolean locked = reasons[c.lits[0] >> 1] == c && value(c.lits[0]) == TRUE;
+            if (removed < limit && c.lbd > 2 && !locked) {
+                c.deleted = true;
+                removed++;
+            } else {
+                kept.add(c);
+            }
+        }
+        learnts.clear();
+        learnts.addAll(kept);
+        maxLearnts *= 1.1;
+    }
+
+    private int pickBranch() {
+        while (heapSize > 0) {
+            int v = heapRemoveMax();
+            if (assigns[v] == UNDEF) {
+                return phases[v] ? positive(v) : negative(v);
+            }
+        }
+        return -1;
+    }
+
+    private void bump(int v) {
+        activity[v] += variableIncrement;
+        if (activity[v] > 1e100) {
+            for (int u = 0; u < vars; u++) {
+                activity[u] *= 1e-100;
+            }
+            variableIncrement *= 1e-100;
+        }
+        if (heapPositions[v] >= 0) {
+            siftUp(heapPositions[v]);
+        }
+    }
+
+    private void heapInsert(int v) {
+        heap[heapSize] = v;
+        heapPositions[v] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int heapRemoveMax() {
+        int top = heap[0];
+        heapPositions[top] = -1;
+        heapSize--;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapPositions[heap[0]] = 0;
+            siftDown(0);
+        }
+        return top;
+    }
+
+    private void siftUp(int i) {
+        int v = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (activity[heap[parent]] >= activity[v]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            heapPositions[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = v;
+        heapPositions[v] = i;
+    }
+
+    private void siftDown(int i) {
+        int v = heap[i];
+        while (2 * i + 1 < heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < heapSize && activity[heap[child + 1]] > activity[heap[child]]) {
+                child++;
+            }
+            if (activity[heap[child]] <= activity[v]) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapPositions[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = v;
+        heapPositions[v] = i;
+    }
+
+    // The Luby sequence 1, 1, 2, 1, 1, 2, 4, ...
+    private static long luby(int i) {
+        int size = 1;
+        int sequence = 0;
+        while (size < i + 1) {
+            sequence++;
+            size = 2 * size + 1;
+        }
+        while (size - 1 != i) {
+            size = (size - 1) / 2;
+            sequence--;
+            i = i % size;
+        }
+        return 1L << sequence;
+    }
+}
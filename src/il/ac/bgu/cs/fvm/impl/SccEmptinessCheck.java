@@ -0,0 +1,184 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Accepting-cycle detection by Couvreur's on-the-fly SCC algorithm. A single
+ * Tarjan-style depth-first search keeps a stack of partial SCC roots, each
+ * carrying the union of the acceptance sets of its states; a cycle is
+ * reported as soon as merging SCCs yields a root that covers every set.
+ * <p>
+ * This handles generalized Buchi acceptance directly, and runs on explicit
+ * stacks.
+ */
+public class SccEmptinessCheck implements EmptinessCheck {
+
+    @Override
+    public <N> Lasso<N> findAcceptingCycle(BuchiGraph<N> graph) {
+        return findAcceptingCycle((GeneralizedBuchiGraph<N>) graph);
+    }
+
+    /**
+     * @return A lasso whose cycle visits every acceptance set of
+     * {@code graph}, or {@code null} if there is none.
+     */
+    public <N> Lasso<N> findAcceptingCycle(GeneralizedBuchiGraph<N> graph) {
+        int sets = graph.acceptanceSetCount();
+        if (sets > 64) {
+            throw new IllegalArgumentException("At most 64 acceptance sets are supported, got " + sets);
+        }
+        Search<N> search = new Search<>(graph, sets == 64 ? -1L : (1L << sets) - 1);
+        for (N s : graph.initialStates()) {
+            if (!search.dead.contains(s)) {
+                Lasso<N> lasso = search.run(s);
+                if (lasso != null) {
+                    return lasso;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class Search<N> {
+        private final GeneralizedBuchiGraph<N> graph;
+        private final long allSets;
+
+        // States of completed SCCs.
+        private final Set<N> dead = new HashSet<>();
+        // States of partial SCCs, in DFS order, with their positions in it.
+        private final List<N> live = new ArrayList<>();
+        private final Map<N, Integer> livePositions = new HashMap<>();
+        // The DFS call stack.
+        private final List<N> path = new ArrayList<>();
+        private final List<Iterator<N>> pathSuccessors = new ArrayList<>();
+        // Partial SCC roots, as positions in live, with the union of their sets.
+        private int[] roots = new int[16];
+        private long[] rootSets = new long[16];
+        private int rootCount;
+
+        Search(GeneralizedBuchiGraph<N> graph, long allSets) {
+            this.graph = graph;
+            this.allSets = allSets;
+        }
+
+        Lasso<N> run(N initial) {
+            push(initial);
+            while (!path.isEmpty()) {
+                int top = path.size() - 1;
+                N s = path.get(top);
+                Iterator<N> it = pathSuccessors.get(top);
+                if (it.hasNext()) {
+                    N t = it.next();
+                    if (dead.contains(t)) {
+                        continue;
+                    }
+                    Integer position = livePositions.get(t);
+                    if (position == null) {
+                        push(t);
+                        continue;
+                    }
+                    // t closes a cycle: merge every partial SCC above it into one.
+                    long sets = 0;
+                    while (roots[rootCount - 1] > position) {
+                        sets |= rootSets[--rootCount];
+                    }
+                    rootSets[rootCount - 1] |= sets;
+                    if ((rootSets[rootCount - 1] & allSets) == allSets) {
+                        return lasso(roots[rootCount - 1]);
+                    }
+                } else {
+                    path.remove(top);
+                    pathSuccessors.remove(top);
+                    int position = livePositions.get(s);
+                    if (roots[rootCount - 1] == position) {
+                        rootCount--;
+                        for (int i = live.size() - 1; i >= position; i--) {
+                            N done = live.remove(i);
+                            livePositions.remove(done);
+                            dead.add(done);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void push(N s) {
+            if (rootCount == roots.length) {
+                roots = Arrays.copyOf(roots, rootCount * 2);
+                rootSets = Arrays.copyOf(rootSets, rootCount * 2);
+            }
+            roots[rootCount] = live.size();
+            rootSets[rootCount] = graph.acceptanceMask(s);
+            rootCount++;
+            livePositions.put(s, live.size());
+            live.add(s);
+            path.add(s);
+            pathSuccessors.add(graph.successors(s).iterator());
+        }
+
+        // The DFS path to the root, then a cycle through the root's SCC touching every set.
+        private Lasso<N> lasso(int rootPosition) {
+            N root = live.get(rootPosition);
+            Set<N> component = new HashSet<>(live.subList(rootPosition, live.size()));
+            List<N> cycle = new ArrayList<>(Collections.singletonList(root));
+            long covered = graph.acceptanceMask(root);
+            N current = root;
+            for (int i = 0; i < Long.SIZE; i++) {
+                long bit = 1L << i;
+                if ((allSets & bit) != 0 && (covered & bit) == 0) {
+                    List<N> step = shortestPath(current, s -> (graph.acceptanceMask(s) & bit) != 0, component);
+                    for (N s : step) {
+                        covered |= graph.acceptanceMask(s);
+                    }
+                    cycle.addAll(step);
+                    current = step.get(step.size() - 1);
+                }
+            }
+            cycle.addAll(shortestPath(current, root::equals, component));
+            cycle.remove(cycle.size() - 1);
+            return new Lasso<>(new ArrayList<>(path.subList(0, path.indexOf(root))), cycle);
+        }
+
+        // A shortest non-empty path within component from - exclusive - to a target state.
+        private List<N> shortestPath(N from, Predicate<N> target, Set<N> component) {
+            Map<N, N> parents = new HashMap<>();
+            Deque<N> queue = new ArrayDeque<>();
+            queue.add(from);
+            while (!queue.isEmpty()) {
+                N s = queue.poll();
+                for (N t : graph.successors(s)) {
+                    if (!component.contains(t) || parents.containsKey(t)) {
+                        continue;
+                    }
+                    parents.put(t, s);
+                    if (target.test(t)) {
+                        List<N> steps = new ArrayList<>();
+                        N step = t;
+                        do {
+                            steps.add(step);
+                            step = parents.get(step);
+                        } while (!step.equals(from));
+                        Collections.reverse(steps);
+                        return steps;
+                    }
+                    if (!t.equals(from)) {
+                        queue.add(t);
+                    }
+                }
+            }
+            throw new IllegalStateException("SCC is not strongly connected");
+        }
+    }
+}
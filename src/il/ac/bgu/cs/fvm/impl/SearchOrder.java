@@ -0,0 +1,11 @@
+package il.ac.bgu.cs.fvm.impl;
+
+/**
+ * The order in which {@link ReachabilityEngine} expands discovered states.
+ */
+public enum SearchOrder {
+    /** Breadth-first: states are expanded in order of discovery. */
+    BFS,
+    /** Depth-first: the most recently discovered state is expanded next. */
+    DFS
+}
@@ -0,0 +1,28 @@
+package il.ac.bgu.cs.fvm.impl;
+
+/**
+ * The visited-state set of a search. Implementations may trade exactness for
+ * memory, as long as {@link #add(Object)} never reports a state it already
+ * holds as new.
+ */
+public interface StateStore<S> {
+
+    /**
+     * Records {@code state} as visited.
+     *
+     * @return {@code true} iff {@code state} was not visited before.
+     */
+    boolean add(S state);
+
+    boolean contains(S state);
+
+    long size();
+
+    /**
+     * @return {@code false} if {@link #add(Object)} may take a new state for
+     * a visited one, so that a search using the store may miss states.
+     */
+    default boolean isExact() {
+        return true;
+    }
+}
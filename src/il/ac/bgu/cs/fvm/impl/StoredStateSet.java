@@ -0,0 +1,76 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// A read-only view of the states a search stored, for stores that cannot list
+// them: membership asks the store, and iteration filters the states it was
+// searching among. Nothing is copied, so compressed stores stay compressed.
+// Closing the view closes a store that holds files.
+final class StoredStateSet<S> extends AbstractSet<S> implements AutoCloseable {
+
+    private final StateStore<S> store;
+    private final Set<S> candidates;
+
+    StoredStateSet(StateStore<S> store, Set<S> candidates) {
+        this.store = store;
+        this.candidates = candidates;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        try {
+            return store.contains((S) o);
+        } catch (ClassCastException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(store.size(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() {
+        if (store instanceof DiskStateStore) {
+            ((DiskStateStore<S>) store).close();
+        }
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+        Iterator<S> all = candidates.iterator();
+        return new Iterator<S>() {
+            private S next = advance();
+
+            private S advance() {
+                while (all.hasNext()) {
+                    S s = all.next();
+                    if (store.contains(s)) {
+                        return s;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public S next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                S s = next;
+                next = advance();
+                return s;
+            }
+        };
+    }
+}
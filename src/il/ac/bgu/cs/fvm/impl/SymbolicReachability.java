@@ -0,0 +1,256 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.circuits.Circuit;
+import il.ac.bgu.cs.fvm.transitionsystem.Transition;
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reachability over a system encoded as BDDs: a set of initial states and a
+ * transition relation over {@code b} state bits. State bit i is BDD variable
+ * 2i in its current copy and 2i+1 in its next copy, and the reachable states
+ * are computed by image iteration, one breadth-first layer per step, without
+ * enumerating them.
+ * <p>
+ * Building the encoding is another matter. A transition system is encoded
+ * state by state and transition by transition, and a {@link Circuit} is
+ * sampled at every valuation of its inputs and registers, so both only suit
+ * small systems. For larger ones, describe the circuit with
+ * {@link CircuitFunctions} and use {@link #of(CircuitFunctions)}, or give the
+ * BDDs directly to {@link #of(BddManager, int, int, int, Map)}.
+ * <p>
+ * Atomic propositions are available as BDDs over the current copy, so that
+ * invariants can be written with the operations of {@link #getBddManager()}.
+ */
+public class SymbolicReachability<P> {
+
+    private final BddManager bdd;
+    private final int[] current;
+    private final int currentCube;
+    private final BddManager.Renaming nextToCurrent;
+    private final int initial;
+    private final int transitions;
+    private final Map<P, Integer> propositions;
+    private int reachable = -1;
+    private int iterations;
+
+    private SymbolicReachability(BddManager bdd, int bits, int initial, int transitions, Map<P, Integer> propositions) {
+        this.bdd = bdd;
+        this.current = new int[bits];
+        int[] next = new int[bits];
+        for (int i = 0; i < bits; i++) {
+            current[i] = currentVar(i);
+            next[i] = nextVar(i);
+        }
+        this.currentCube = bdd.cube(current);
+        this.nextToCurrent = bdd.renaming(next, current);
+        this.initial = initial;
+        this.transitions = transitions;
+        this.propositions = propositions;
+    }
+
+    private static int currentVar(int bit) {
+        return 2 * bit;
+    }
+
+    private static int nextVar(int bit) {
+        return 2 * bit + 1;
+    }
+
+    /**
+     * Encodes the states of {@link FvmFacadeImpl#transitionSystemFromCircuit}:
+     * one bit per register and per input, with the next inputs left free.
+     *
+     * @throws IllegalArgumentException If {@code c} has more than
+     * {@link CircuitFunctions#MAX_SAMPLED_BITS} inputs and registers.
+     */
+    static SymbolicReachability<String> of(Circuit c) {
+        return of(CircuitFunctions.of(c, new BddManager()));
+    }
+
+    /**
+     * Encodes a circuit given by its functions, over their BDD manager, as
+     * {@link #of(Circuit)} does.
+     */
+    public static SymbolicReachability<String> of(CircuitFunctions functions) {
+        BddManager bdd = functions.bdd;
+        int initial = BddManager.TRUE;
+        int transitions = BddManager.TRUE;
+        Map<String, Integer> propositions = new HashMap<>();
+        for (int j = 0; j < functions.inputs.size(); j++) {
+            propositions.put(functions.inputs.name(j), bdd.var(currentVar(functions.inputBit(j))));
+        }
+        for (int i = 0; i < functions.registers.size(); i++) {
+            int bit = functions.registerBit(i);
+            initial = bdd.and(initial, bdd.nvar(currentVar(bit)));
+            transitions = bdd.and(transitions, bdd.iff(bdd.var(nextVar(bit)), functions.update(i)));
+            propositions.put(functions.registers.name(i), bdd.var(currentVar(bit)));
+        }
+        for (int o = 0; o < functions.outputs.size(); o++) {
+            propositions.put(functions.outputs.name(o), functions.output(o));
+        }
+        return new SymbolicReachability<>(bdd, functions.bits(), initial, transitions, propositions);
+    }
+
+    /**
+     * A system given by its BDDs over the variables of {@code bdd}: state bit
+     * i is variable 2i in {@code initial}, {@code propositions} and the
+     * current copy of {@code transitions}, and variable 2i+1 in its next copy.
+     */
+    public static <P> SymbolicReachability<P> of(BddManager bdd, int bits, int initial, int transitions,
+                                                 Map<P, Integer> propositions) {
+        if (bits < 1) {
+            throw new IllegalArgumentException("State bit count must be positive, got " + bits);
+        }
+        return new SymbolicReachability<>(bdd, bits, initial, transitions, new HashMap<>(propositions));
+    }
+
+    /**
+     * Encodes a transition system with its states numbered in binary;
+     * actions are dropped.
+     */
+    static <S, A, P> SymbolicReachability<P> of(TransitionSystem<S, A, P> ts) {
+        Interner<S> ids = new Interner<>();
+        for (S s : ts.getStates()) {
+            ids.intern(s);
+        }
+        int bits = ids.capacity() <= 1 ? 1 : 32 - Integer.numberOfLeadingZeros(ids.capacity() - 1);
+        BddManager bdd = new BddManager();
+
+        int initial = BddManager.FALSE;
+        for (S s : ts.getInitialStates()) {
+            initial = bdd.or(initial, encode(bdd, bits, ids.idOf(s), false));
+        }
+        Map<Integer, Integer> targets = new HashMap<>();
+        for (Transition<S, A> t : ts.getTransitions()) {
+            int from = ids.idOf(t.getFrom());
+            int to = encode(bdd, bits, ids.idOf(t.getTo()), true);
+            targets.merge(from, to, bdd::or);
+        }
+        int transitions = BddManager.FALSE;
+        for (Map.Entry<Integer, Integer> row : targets.entrySet()) {
+            transitions = bdd.or(transitions, bdd.and(encode(bdd, bits, row.getKey(), false), row.getValue()));
+        }
+        Map<P, Integer> propositions = new HashMap<>();
+        for (P p : ts.getAtomicPropositions()) {
+            propositions.put(p, BddManager.FALSE);
+        }
+        for (int id = 0; id < ids.capacity(); id++) {
+            int state = encode(bdd, bits, id, false);
+            for (P p : ts.getLabel(ids.get(id))) {
+                propositions.merge(p, state, bdd::or);
+            }
+        }
+        return new SymbolicReachability<>(bdd, bits, initial, transitions, propositions);
+    }
+
+    // The cube of state number id, most significant bit first.
+    private static int encode(BddManager bdd, int bits, int id, boolean next) {
+        int result = BddManager.TRUE;
+        for (int i = bits - 1; i >= 0; i--) {
+            int v = next ? nextVar(i) : currentVar(i);
+            boolean value = (id >>> (bits - 1 - i) & 1) != 0;
+            result = value ? bdd.mk(v, BddManager.FALSE, result) : bdd.mk(v, result, BddManager.FALSE);
+        }
+        return result;
+    }
+
+    public BddManager getBddManager() {
+        return bdd;
+    }
+
+    /**
+     * @return The states labeled {@code p}, over the current copy.
+     */
+    public int proposition(P p) {
+        Integer states = propositions.get(p);
+        if (states == null) {
+            throw new IllegalArgumentException("Unknown atomic proposition: " + p);
+        }
+        return states;
+    }
+
+    public int initialStates() {
+        return initial;
+    }
+
+    /**
+     * @return The successors of {@code states}.
+     */
+    public int image(int states) {
+        return bdd.replace(bdd.relProd(states, transitions, currentCube), nextToCurrent);
+    }
+
+    /**
+     * @return The reachable states, computed on first use.
+     */
+    public int reachable() {
+        if (reachable < 0) {
+            explore(BddManager.TRUE);
+        }
+        return reachable;
+    }
+
+    /**
+     * @return The number of image steps it took to reach every reachable
+     * state: the length of the longest shortest path from an initial state.
+     */
+    public int getIterations() {
+        reachable();
+        return iterations;
+    }
+
+    public BigInteger countReachable() {
+        return count(reachable());
+    }
+
+    /**
+     * @return The number of states in {@code states}.
+     */
+    public BigInteger count(int states) {
+        return bdd.satCount(states, current);
+    }
+
+    /**
+     * Checks that every reachable state is in {@code invariant}, stopping at
+     * the first layer that leaves it.
+     *
+     * @return -1 if the invariant holds, otherwise the length of a shortest
+     * path to a state that violates it.
+     */
+    public int violationDepth(int invariant) {
+        if (reachable >= 0 && bdd.and(reachable, bdd.not(invariant)) == BddManager.FALSE) {
+            return -1;
+        }
+        return explore(invariant);
+    }
+
+    /**
+     * @return The reachable states outside {@code invariant}.
+     */
+    public int violations(int invariant) {
+        return bdd.and(reachable(), bdd.not(invariant));
+    }
+
+    // Breadth-first image iteration; returns the depth of the first layer outside invariant, or -1.
+    private int explore(int invariant) {
+        int bad = bdd.not(invariant);
+        int reached = initial;
+        int frontier = initial;
+        int depth = 0;
+        while (frontier != BddManager.FALSE) {
+            if (bdd.and(frontier, bad) != BddManager.FALSE) {
+                return depth;
+            }
+            frontier = bdd.and(image(frontier), bdd.not(reached));
+            reached = bdd.or(reached, frontier);
+            depth++;
+        }
+        reachable = reached;
+        iterations = Math.max(depth - 1, 0);
+        return -1;
+    }
+}
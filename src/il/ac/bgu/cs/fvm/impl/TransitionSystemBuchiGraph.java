@@ -0,0 +1,42 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
+
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A materialized transition system - typically the result of
+ * {@link FvmFacadeImpl#product} - seen as a Buchi graph.
+ */
+public class TransitionSystemBuchiGraph<S> implements BuchiGraph<S> {
+
+    private final TransitionSystem<S, ?, ?> ts;
+    private final Function<S, Set<S>> post;
+    private final Predicate<S> accepting;
+
+    /**
+     * @param post The single-step successor relation of {@code ts}.
+     */
+    public TransitionSystemBuchiGraph(TransitionSystem<S, ?, ?> ts, Function<S, Set<S>> post, Predicate<S> accepting) {
+        this.ts = ts;
+        this.post = post;
+        this.accepting = accepting;
+    }
+
+    @Override
+    public Set<S> initialStates() {
+        return ts.getInitialStates();
+    }
+
+    @Override
+    public Set<S> successors(S state) {
+        return post.apply(state);
+    }
+
+    @Override
+    public boolean isAccepting(S state) {
+        return accepting.test(state);
+    }
+}
@@ -4,12 +4,13 @@ import il.ac.bgu.cs.fvm.exceptions.*;
 import il.ac.bgu.cs.fvm.transitionsystem.Transition;
 import il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P> {
+public class TransitionSystemImpl <S, A, P> implements IndexedTransitionSystem<S, A, P> {
 
     private String name;
     private Map<S, Boolean> states = new HashMap<>(); // Boolean is for isInitial
@@ -17,6 +18,9 @@ public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P
     private Set<Transition<S, A>> transitions = new HashSet<>();
     private Set<A> actions = new HashSet<>();
     private Set<P> atomicPropositions = new HashSet<>();
+    // Adjacency indices over transitions, kept in sync by add/removeTransition.
+    private Map<S, Map<A, Set<S>>> successors = new HashMap<>();
+    private Map<S, Map<A, Set<S>>> predecessors = new HashMap<>();
 
     @Override
     public String getName() {
@@ -54,7 +58,10 @@ public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P
                 !actions.contains(t.getAction())) {
             throw new InvalidTransitionException(t);
         }
-        transitions.add(t);
+        if (transitions.add(t)) {
+            index(successors, t.getFrom(), t.getAction(), t.getTo());
+            index(predecessors, t.getTo(), t.getAction(), t.getFrom());
+        }
     }
 
     @Override
@@ -111,7 +118,28 @@ public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P
 
     @Override
     public Set<Transition<S, A>> getTransitions() {
-        return transitions;
+        // Read-only, so the adjacency indices can't go stale behind our back.
+        return Collections.unmodifiableSet(transitions);
+    }
+
+    @Override
+    public Set<S> post(S s) {
+        return union(successors.get(s));
+    }
+
+    @Override
+    public Set<S> post(S s, A a) {
+        return lookup(successors.get(s), a);
+    }
+
+    @Override
+    public Set<S> pre(S s) {
+        return union(predecessors.get(s));
+    }
+
+    @Override
+    public Set<S> pre(S s, A a) {
+        return lookup(predecessors.get(s), a);
     }
 
     @Override
@@ -145,10 +173,8 @@ public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P
 
     @Override
     public void removeState(S s) throws FVMException {
-        for (Transition<S, A> transition : transitions) {
-            if (transition.getFrom().equals(s) || transition.getTo().equals(s)) {
-                throw new DeletionOfAttachedStateException(s, TransitionSystemPart.TRANSITIONS);
-            }
+        if (successors.containsKey(s) || predecessors.containsKey(s)) {
+            throw new DeletionOfAttachedStateException(s, TransitionSystemPart.TRANSITIONS);
         }
         if (labels.get(s) != null) {
             if (!labels.get(s).isEmpty()) {
@@ -159,11 +185,51 @@ public class TransitionSystemImpl <S, A, P> implements TransitionSystem< S, A, P
             throw new DeletionOfAttachedStateException(s, TransitionSystemPart.INITIAL_STATES);
         }
         states.remove(s);
+        labels.remove(s);
     }
 
     @Override
     public void removeTransition(Transition<S, A> t) {
-        transitions.remove(t);
+        if (transitions.remove(t)) {
+            unindex(successors, t.getFrom(), t.getAction(), t.getTo());
+            unindex(predecessors, t.getTo(), t.getAction(), t.getFrom());
+        }
+    }
+
+    private void index(Map<S, Map<A, Set<S>>> adjacency, S key, A action, S other) {
+        adjacency.computeIfAbsent(key, k -> new HashMap<>())
+                .computeIfAbsent(action, k -> new HashSet<>())
+                .add(other);
+    }
+
+    // Drops empty buckets, so a state is attached iff it is a key of either index.
+    private void unindex(Map<S, Map<A, Set<S>>> adjacency, S key, A action, S other) {
+        Map<A, Set<S>> byAction = adjacency.get(key);
+        Set<S> others = byAction.get(action);
+        others.remove(other);
+        if (others.isEmpty()) {
+            byAction.remove(action);
+            if (byAction.isEmpty()) {
+                adjacency.remove(key);
+            }
+        }
+    }
+
+    private Set<S> union(Map<A, Set<S>> byAction) {
+        Set<S> result = new HashSet<>();
+        if (byAction != null) {
+            for (Set<S> others : byAction.values()) {
+                result.addAll(others);
+            }
+        }
+        return result;
+    }
+
+    private Set<S> lookup(Map<A, Set<S>> byAction, A action) {
+        if (byAction == null || byAction.get(action) == null) {
+            return new HashSet<>();
+        }
+        return new HashSet<>(byAction.get(action));
     }
 
     @Override
@@ -0,0 +1,12 @@
+package il.ac.bgu.cs.fvm.impl;
+
+/**
+ * The concrete {@link il.ac.bgu.cs.fvm.transitionsystem.TransitionSystem}
+ * class {@link FvmFacadeImpl#createTransitionSystem()} hands out.
+ */
+public enum TransitionSystemRepresentation {
+    /** {@link TransitionSystemImpl}: hash-based, cheap to mutate. */
+    HASHED,
+    /** {@link CompactTransitionSystem}: int-interned CSR, small and cache friendly. */
+    COMPACT
+}
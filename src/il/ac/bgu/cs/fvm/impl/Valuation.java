@@ -0,0 +1,245 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only variable valuation of a program graph state. The variable
+ * names are given slots once, by the valuation's {@link Pool}, and a
+ * valuation is just the array of values by slot, with its Map hash kept. A
+ * missing variable has a {@code null} slot, so values cannot be null.
+ * <p>
+ * A valuation is equal to any map with the same entries. Within a pool,
+ * {@link Pool#intern} keeps one instance per distinct valuation, and two
+ * interned ones are equal exactly when they are the same instance.
+ */
+final class Valuation extends AbstractMap<String, Object> {
+
+    /**
+     * The slots of the variable names seen so far, and the interned
+     * valuations over them. Names are only ever added.
+     */
+    static final class Pool {
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[0];
+        private final Map<Key, Valuation> interned = new ConcurrentHashMap<>();
+
+        private int slotOf(String name) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : addSlot(name);
+        }
+
+        private synchronized int addSlot(String name) {
+            Integer slot = slots.get(name);
+            if (slot != null) {
+                return slot;
+            }
+            String[] grown = Arrays.copyOf(names, names.length + 1);
+            grown[names.length] = name;
+            names = grown;
+            slots.put(name, names.length - 1);
+            return names.length - 1;
+        }
+
+        /**
+         * @return The one valuation of this pool equal to {@code eval}.
+         */
+        Valuation intern(Map<String, Object> eval) {
+            Valuation valuation = eval instanceof Valuation && ((Valuation) eval).pool == this
+                    ? (Valuation) eval
+                    : of(eval);
+            if (valuation.interned) {
+                return valuation;
+            }
+            Valuation known = interned.putIfAbsent(new Key(valuation), valuation);
+            if (known != null) {
+                return known;
+            }
+            valuation.interned = true;
+            return valuation;
+        }
+
+        private Valuation of(Map<String, Object> eval) {
+            Object[] values = new Object[names.length];
+            int length = 0;
+            int hash = 0;
+            for (Entry<String, Object> entry : eval.entrySet()) {
+                if (entry.getValue() == null) {
+                    throw new NullPointerException("No value for " + entry.getKey());
+                }
+                int slot = slotOf(entry.getKey());
+                if (slot >= values.length) {
+                    values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+                }
+                values[slot] = entry.getValue();
+                length = Math.max(length, slot + 1);
+                hash += entry.getKey().hashCode() ^ entry.getValue().hashCode();
+            }
+            return new Valuation(this, values.length == length ? values : Arrays.copyOf(values, length), eval.size(), hash);
+        }
+
+        int size() {
+            return interned.size();
+        }
+    }
+
+    /**
+     * The key of an interned valuation. The Map hash, a sum over the entries,
+     * takes few distinct values over valuations of small integers, so the
+     * table hashes the values by slot instead.
+     */
+    private static final class Key {
+        private final Valuation valuation;
+        private final int hash;
+
+        Key(Valuation valuation) {
+            this.valuation = valuation;
+            int h = 1;
+            int last = valuation.values.length - 1;
+            while (last >= 0 && valuation.values[last] == null) {
+                last--;
+            }
+            for (int slot = 0; slot <= last; slot++) {
+                Object value = valuation.values[slot];
+                h = 31 * h + (value == null ? 0 : value.hashCode());
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash && valuation.sameValues(((Key) o).valuation);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Pool pool;
+    private final Object[] values;
+    private final int size;
+    private final int hash;
+    private volatile boolean interned;
+
+    private Valuation(Pool pool, Object[] values, int size, int hash) {
+        this.pool = pool;
+        this.values = values;
+        this.size = size;
+        this.hash = hash;
+    }
+
+    /**
+     * @return This valuation with {@code variable} set to {@code value};
+     * not interned.
+     */
+    Valuation with(String variable, Object value) {
+        if (value == null) {
+            throw new NullPointerException("No value for " + variable);
+        }
+        int slot = pool.slotOf(variable);
+        Object[] newValues = Arrays.copyOf(values, Math.max(values.length, slot + 1));
+        Object old = newValues[slot];
+        newValues[slot] = value;
+        int newHash = hash + (variable.hashCode() ^ value.hashCode());
+        if (old != null) {
+            newHash -= variable.hashCode() ^ old.hashCode();
+        }
+        return new Valuation(pool, newValues, old == null ? size + 1 : size, newHash);
+    }
+
+    private Object valueAt(int slot) {
+        return slot < values.length ? values[slot] : null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        Integer slot = pool.slots.get(key);
+        return slot == null ? null : valueAt(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof Valuation && ((Valuation) o).pool == pool) {
+            Valuation other = (Valuation) o;
+            return !(interned && other.interned) && other.hash == hash && other.size == size && sameValues(other);
+        }
+        return super.equals(o);
+    }
+
+    // Slot by slot; both valuations are of the same pool.
+    private boolean sameValues(Valuation other) {
+        for (int slot = Math.max(values.length, other.values.length) - 1; slot >= 0; slot--) {
+            Object value = valueAt(slot);
+            if (value == null ? other.valueAt(slot) != null : !value.equals(other.valueAt(slot))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                String[] names = pool.names;
+                return new Iterator<Entry<String, Object>>() {
+                    private int slot = advance(0);
+
+                    private int advance(int from) {
+                        while (from < values.length && values[from] == null) {
+                            from++;
+                        }
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(names[slot], values[slot]);
+                        slot = advance(slot + 1);
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
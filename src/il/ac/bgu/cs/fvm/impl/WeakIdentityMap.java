@@ -0,0 +1,62 @@
+package il.ac.bgu.cs.fvm.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+// A thread-safe map whose keys are compared by identity and held weakly, so
+// that, unlike WeakHashMap, keys that are equal but distinct get separate values.
+final class WeakIdentityMap<K, V> {
+
+    private static final class Ref<K> extends WeakReference<K> {
+        private final int hash;
+
+        Ref(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            // A cleared reference is only equal to itself, so that it can still be removed.
+            Object key = get();
+            return o instanceof Ref && key != null && ((Ref<?>) o).get() == key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final Map<Ref<K>, V> entries = new HashMap<>();
+    private final ReferenceQueue<K> cleared = new ReferenceQueue<>();
+
+    synchronized V computeIfAbsent(K key, Function<? super K, ? extends V> compute) {
+        expunge();
+        Ref<K> lookup = new Ref<>(key, null);
+        V value = entries.get(lookup);
+        if (value == null) {
+            value = compute.apply(key);
+            entries.put(new Ref<>(key, cleared), value);
+        }
+        return value;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        expunge();
+    }
+
+    private void expunge() {
+        for (Reference<? extends K> ref = cleared.poll(); ref != null; ref = cleared.poll()) {
+            entries.remove(ref);
+        }
+    }
+}